@@ -7,22 +7,305 @@
 
 import java.util.function.Function;
 import java.util.function.BiConsumer;
-import java.util.Queue;
+import java.util.function.Predicate;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.lang.management.*;
-import java.util.PriorityQueue;
+import java.lang.reflect.Array;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Test {
 
-    private static boolean allPassed;
-    private static String currentFile;
-    private static String currentFunc;
-    private static int currentLine;
-    private static final Queue<String> testMessages = new PriorityQueue<>();
+    // Set only on threads running a test or doing work for one. Threads aren't reused across tests with their
+    // context, so a pool thread started during one test can't count assertions against it later on
+    private static final ThreadLocal<TestContext> context = new ThreadLocal<>();
+    // Collects assertions that can't be told apart from those of another test. Its failures are reported at
+    // END as a failed test of their own
+    private static final TestContext strays = strays();
+    private static int parallelism = Runtime.getRuntime().availableProcessors();
+    private static final List<Reporter> reporters = new CopyOnWriteArrayList<>(
+            Collections.singletonList(new ConsoleReporter()));
+    private static volatile Baseline baseline;
+
+    private static final StackWalker walker = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+    private static final Map<CallSiteKey, CallSite> callSites = new ConcurrentHashMap<>();
 
     public static final String ANSI_RESET = "\u001B[0m";
     public static final String ANSI_RED = "\u001B[31;1m";
     public static final String ANSI_GREEN = "\u001B[32;1m";
 
+    // Result state of a single test. Each running test owns one, so tests can run side by side
+    private static class TestContext {
+        boolean allPassed = true;
+        String currentFunc;
+        final FailureLog failures = new FailureLog();
+        final List<ExperimentResult> experiments = new ArrayList<>();
+        final List<ComparisonResult> comparisons = new ArrayList<>();
+        final List<ScalingResult> scalings = new ArrayList<>();
+        Exception exception;
+        long wallNanos;
+        // CPU time of the thread running the test, plus the threads doing work for it: experiment and
+        // scaling workers, timed work and property checks. Those may add to it at the same time
+        final LongAdder cpuNanos = new LongAdder();
+        final LongAdder assertions = new LongAdder();
+        // Set once the test has been reported. Work it left behind, like timed work that ignored its
+        // interrupt, can't change its result any more
+        volatile boolean finished;
+
+        // Counts an assertion here and in the running totals of the suite, or as a stray once the test is over
+        void assertion() {
+            if (finished) {
+                Metrics.INSTANCE.stray();
+                return;
+            }
+            assertions.increment();
+            Metrics.INSTANCE.assertion();
+        }
+
+        TestResult.Status status() {
+            return exception != null ? TestResult.Status.EXCEPT
+                    : allPassed ? TestResult.Status.PASSED : TestResult.Status.FAILED;
+        }
+
+        TestResult result() {
+            return new TestResult(currentFunc, status(), failures.messages(), exception, wallNanos,
+                    cpuNanos.sum(), assertions.intValue(), 0, experiments, comparisons, scalings);
+        }
+
+        // Keeps the result of a timing run, unless the test is over. One cancelled at its timeout may still
+        // finish a run while its result is reported
+        synchronized <T> void record(List<T> results, T result) {
+            if (!finished)
+                results.add(result);
+        }
+
+        // Adds the CPU time of the thread that ran the test and marks it over. Once the test was reported as
+        // timed out, its CPU time up to then is already counted
+        synchronized void finish(long cpu) {
+            if (!finished)
+                cpuNanos.add(cpu);
+            finished = true;
+        }
+
+        // The result of a test cancelled at its timeout, with what it had done by then. A test that stopped
+        // once cancelled has counted its own CPU time, otherwise its time up to the timeout is counted here
+        synchronized TestResult timedOut(String name, Timeouts.Result result, double timeoutMs) {
+            long cpu = cpuNanos.sum() + (finished ? 0 : result.cpuNanos);
+            finished = true;
+            List<String> messages = failures.messages();
+            if (result.runaway)
+                messages.add("Still running after it was cancelled, as it ignores interrupts");
+            return new TestResult(name, TestResult.Status.TIMEOUT, messages, null, result.elapsedNanos, cpu,
+                    assertions.intValue(), timeoutMs, new ArrayList<>(experiments), new ArrayList<>(comparisons),
+                    new ArrayList<>(scalings));
+        }
+    }
+
+    // Source position of a call made from a test function
+    private static final class CallSite {
+        final String file;
+        final String func;
+        final int line;
+
+        CallSite(String file, String func, int line) {
+            this.file = file;
+            this.func = func;
+            this.line = line;
+        }
+    }
+
+    // Failures of one test in the order they happened. Repeats at a call site are counted, keeping only the
+    // first few messages, and so are failures past a limit on call sites. A failing assertion in a loop
+    // can't use up the heap. Sites are looked up by their stack frame, and counted without locking. A site
+    // the test asserted at itself, rather than through a helper, is also found from the assertion's caller,
+    // so a repeat failure there only walks the few frames up to it
+    private static final class FailureLog {
+
+        static final int EXAMPLES = 3;
+        static final int MAX_SITES = 50;
+        static final int MAX_MESSAGE = 1000;
+
+        private static final class Entry {
+            final int order;
+            final CallSite site;
+            // Whether the test called the assertion itself, so the site is the assertion's caller
+            final boolean direct;
+            final List<String> examples = new ArrayList<>(EXAMPLES);
+            final AtomicLong count = new AtomicLong();
+
+            Entry(int order, CallSite site, boolean direct) {
+                this.order = order;
+                this.site = site;
+                this.direct = direct;
+            }
+
+            // Counts a failure here. Returns this entry if the message should be kept, otherwise null
+            Entry repeat() {
+                return count.incrementAndGet() <= EXAMPLES ? this : null;
+            }
+
+            void add(String message) {
+                if (message.length() > MAX_MESSAGE)
+                    message = message.substring(0, MAX_MESSAGE) + "... (" + message.length() + " characters)";
+                synchronized (examples) {
+                    examples.add(message);
+                }
+            }
+        }
+
+        private final Map<CallSiteKey, Entry> entries = new ConcurrentHashMap<>();
+        private final AtomicInteger sites = new AtomicInteger();
+        // Sites the test asserted at itself. Without any, the caller isn't looked up at all
+        private volatile boolean directSites;
+        private final LongAdder dropped = new LongAdder();
+
+        // The entry of a site the test asserted at itself from caller, or null if it hasn't failed there yet
+        Entry direct(StackWalker.StackFrame caller) {
+            if (!directSites)
+                return null;
+            Entry entry = entries.get(new CallSiteKey(caller));
+            return entry != null && entry.direct ? entry : null;
+        }
+
+        // Counts a failure at frame, which is direct if the test made the assertion itself. Returns its entry if
+        // the message should be kept, otherwise null
+        Entry count(StackWalker.StackFrame frame, boolean direct) {
+            CallSiteKey key = new CallSiteKey(frame);
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                if (entries.size() >= MAX_SITES) {
+                    dropped.increment();
+                    return null;
+                }
+                entry = entries.computeIfAbsent(key, k -> new Entry(sites.getAndIncrement(), callSite(frame), direct));
+                if (direct)
+                    directSites = true;
+            }
+            return entry.repeat();
+        }
+
+        List<String> messages() {
+            List<Entry> sorted = new ArrayList<>(entries.values());
+            sorted.sort(Comparator.comparingInt(entry -> entry.order));
+            List<String> messages = new ArrayList<>();
+            for (Entry failures : sorted) {
+                long count = failures.count.get();
+                synchronized (failures.examples) {
+                    messages.addAll(failures.examples);
+                }
+                if (count > EXAMPLES)
+                    messages.add(String.format("%s:%d - Failed %d more times", failures.site.file,
+                            failures.site.line, count - EXAMPLES));
+            }
+            if (dropped.sum() > 0)
+                messages.add(String.format("Failed %d more times at other lines", dropped.sum()));
+            return messages;
+        }
+    }
+
+    // Identifies a call site by its bytecode position, which is cheap to read from a stack frame. Overloads
+    // share a name and may share a bytecode index, so the line tells them apart. Their descriptors would too,
+    // but one is built as a new string on every read, which a repeat failure would pay for each time
+    private static final class CallSiteKey {
+        final Class<?> owner;
+        final String method;
+        final int bci;
+        final int line;
+        private final int hash;
+
+        CallSiteKey(StackWalker.StackFrame frame) {
+            owner = frame.getDeclaringClass();
+            method = frame.getMethodName();
+            bci = frame.getByteCodeIndex();
+            line = frame.getLineNumber();
+            hash = (31 * (31 * System.identityHashCode(owner) + method.hashCode()) + bci) * 31 + line;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof CallSiteKey))
+                return false;
+            CallSiteKey key = (CallSiteKey) other;
+            return owner == key.owner && bci == key.bci && line == key.line && method.equals(key.method);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
     /**
      * Carry out a test using the given function
      * 
@@ -31,225 +314,959 @@ public class Test {
     public static void RUN_TEST(Runnable test) {
         if (test == null)
             throw new IllegalArgumentException("Test was null!");
-        allPassed = true;
+        report(execute(test));
+    }
+
+    /**
+     * Carry out a test using the given function, stopping it if it runs for too long. An overdue test is
+     * interrupted, so it stops early if it waits or checks Thread.interrupted()
+     * 
+     * @param test          The function containing a test. Call using ClassName::FunctionName
+     * @param timeout_ms    Maximum time in milliseconds to allow the test to run, 0 < timeout_ms
+     */
+    public static void RUN_TEST(Runnable test, double timeout_ms) {
+        if (test == null)
+            throw new IllegalArgumentException("Test was null!");
+        if (!(timeout_ms > 0))
+            throw new IllegalArgumentException("Timeout must be positive!");
 
+        // A test that times out before its first assertion was never named by one. Method references don't
+        // carry their target's name, so it is read from the test's own frame before it is cancelled
+        TestContext ctx = new TestContext();
+        if (test instanceof NamedTest)
+            ctx.currentFunc = ((NamedTest) test).name;
+        Timeouts.Result result;
         try {
-            test.run();
-            end();
-        } catch (Exception e) {
-            System.out.printf("%-20s", "[" + ANSI_RED + "EXCEPT" + ANSI_RESET + "]");
-            StackTraceElement trace = e.getStackTrace()[0];
-            System.out.printf("%s:%d", trace.getFileName(), trace.getLineNumber());
-            System.out.printf(" - %s - %s\n", e.getClass().getName(), e.getMessage());
+            result = Timeouts.run(() -> execute(ctx, test), timeout_ms, null);
+        } catch (Timeouts.Exhausted e) {
+            ctx.finished = true;
+            report(new TestResult(ctx.currentFunc, TestResult.Status.EXCEPT, Collections.emptyList(), e, 0, 0, 0,
+                    0, Collections.emptyList(), Collections.emptyList(), Collections.emptyList()));
+            return;
+        }
+        if (result.finished) {
+            report(ctx.result());
+        } else {
+            String name = ctx.currentFunc != null ? ctx.currentFunc : testName(result.stack);
+            report(ctx.timedOut(name, result, timeout_ms));
+        }
+    }
 
-            while (!testMessages.isEmpty()) {
-                System.out.println(testMessages.poll());
+    /**
+     * Carry out several tests in parallel. Each test is run with its own result context on a pool
+     * of at most 'parallelism' worker threads (see BEGIN(int)). Results are printed in the order
+     * the tests were given.
+     * 
+     * @param tests  The functions containing tests. Call using ClassName::FunctionName
+     */
+    public static void RUN_TESTS(Runnable... tests) {
+        if (tests == null)
+            throw new IllegalArgumentException("Tests were null!");
+        for (Runnable test : tests) {
+            if (test == null)
+                throw new IllegalArgumentException("Test was null!");
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(tests.length, 1)),
+                runnable -> {
+                    Thread thread = new Thread(runnable);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            List<Future<TestResult>> results = new ArrayList<>(tests.length);
+            for (Runnable test : tests) {
+                results.add(pool.submit(() -> execute(test)));
+            }
+            for (Future<TestResult> result : results) {
+                report(awaitResult(result));
             }
+        } finally {
+            pool.shutdown();
         }
     }
 
     /**
-     * Call this before beginning unit testing.
+     * Find the test functions of a class: static methods with no parameters whose names start with prefix.
+     * Numbers in names are compared by value, so test2 comes before test10. Discovered tests are named by
+     * their method rather than by reading the stack
+     * 
+     * @param test_class    The class declaring the tests, test_class != null
+     * @param prefix        Start of every test name, e.g. "test"
+     * @return  Tests for RUN_TESTS or RUN_TEST, in name order
      */
-    public static void BEGIN() {
-        String file = Thread.currentThread().getStackTrace()[2].getFileName();
-        System.out.println("\n===== Testing " + file + " =====\n");
+    public static Runnable[] DISCOVER_TESTS(Class<?> test_class, String prefix) {
+        if (test_class == null || prefix == null)
+            throw new IllegalArgumentException("Test class and prefix must not be null!");
+
+        List<Method> methods = new ArrayList<>();
+        for (Method method : test_class.getDeclaredMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) && method.getParameterCount() == 0
+                    && method.getName().startsWith(prefix) && !method.isSynthetic())
+                methods.add(method);
+        }
+        methods.sort((a, b) -> compareNames(a.getName(), b.getName()));
+
+        Runnable[] tests = new Runnable[methods.size()];
+        for (int i = 0; i < tests.length; i++) {
+            tests[i] = new NamedTest(methods.get(i));
+        }
+        return tests;
     }
 
     /**
-     * Call this after testing. Currently does nothing important
+     * Run the tests of DISCOVER_TESTS(test_class, prefix) on several child JVMs, spread round robin. Results
+     * are merged and reported in name order. A test that crashes its JVM or calls System.exit is reported as
+     * an exception, and its shard carries on in a new JVM. Children use the class path of this JVM and report
+     * to this one only, so run timing experiments without shards
+     * 
+     * @param test_class    The class declaring the tests, test_class != null
+     * @param prefix        Start of every test name, e.g. "test"
+     * @param shards        How many JVMs to run at once, shards > 0
      */
-    public static void END() {
-        System.exit(0);
+    public static void RUN_SHARDED(Class<?> test_class, String prefix, int shards) {
+        if (shards <= 0)
+            throw new IllegalArgumentException("Number of shards must be > 0!");
+        Runnable[] tests = DISCOVER_TESTS(test_class, prefix);
+
+        List<CompletableFuture<TestResult>> results = new ArrayList<>(tests.length);
+        for (int i = 0; i < tests.length; i++) {
+            results.add(new CompletableFuture<>());
+        }
+        for (int shard = 0; shard < Math.min(shards, tests.length); shard++) {
+            List<String> names = new ArrayList<>();
+            List<CompletableFuture<TestResult>> shardResults = new ArrayList<>();
+            for (int i = shard; i < tests.length; i += shards) {
+                names.add(((NamedTest) tests[i]).name);
+                shardResults.add(results.get(i));
+            }
+            Thread thread = new Thread(() -> Shard.run(test_class, names, shardResults), "Test-shard-" + shard);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        for (CompletableFuture<TestResult> result : results) {
+            TestResult finished = awaitResult(result);
+            // Assertions in other JVMs aren't counted as they happen
+            Metrics.INSTANCE.assertions(finished.assertions);
+            report(finished);
+        }
     }
 
-    private static void end() {
+    // Entry point of the child JVMs started by RUN_SHARDED: --shard <class> <results file> <test names...>
+    public static void main(String[] args) throws ClassNotFoundException, NoSuchMethodException {
+        if (args.length < 3 || !args[0].equals("--shard"))
+            throw new IllegalArgumentException("Usage: --shard <class> <results file> <test names...>");
 
-        if (allPassed) {
-            System.out.printf("%-20s", "[" + ANSI_GREEN + "PASSED" + ANSI_RESET + "]");
-        } else {
-            System.out.printf("%-20s", "[" + ANSI_RED + "FAILED" + ANSI_RESET + "]");
+        Class<?> test_class = Class.forName(args[1]);
+        SET_REPORTERS(new Shard.Writer(args[2]));
+        for (int i = 3; i < args.length; i++) {
+            RUN_TEST(new NamedTest(test_class.getDeclaredMethod(args[i])));
         }
-        System.out.printf("%s\n", function());
+        END();
+    }
 
-        // Dump errors
-        while (!testMessages.isEmpty()) {
-            System.out.println("\t* " + testMessages.poll());
+    // Orders names by their text, with runs of digits compared by value
+    private static int compareNames(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            char x = a.charAt(i);
+            char y = b.charAt(j);
+            if (Character.isDigit(x) && Character.isDigit(y)) {
+                int endX = i;
+                int endY = j;
+                while (endX < a.length() && Character.isDigit(a.charAt(endX)))
+                    endX++;
+                while (endY < b.length() && Character.isDigit(b.charAt(endY)))
+                    endY++;
+                String numX = a.substring(i, endX).replaceFirst("^0+(?=.)", "");
+                String numY = b.substring(j, endY).replaceFirst("^0+(?=.)", "");
+                int order = numX.length() != numY.length() ? numX.length() - numY.length() : numX.compareTo(numY);
+                if (order != 0)
+                    return order;
+                i = endX;
+                j = endY;
+            } else {
+                if (x != y)
+                    return x - y;
+                i++;
+                j++;
+            }
         }
-        if (!allPassed)
-            System.out.println();
+        return (a.length() - i) - (b.length() - j);
     }
 
-    private static StackTraceElement[] readStack() {
-        StackTraceElement[] traces;
-        try {
-            traces = Thread.currentThread().getStackTrace();
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new IllegalStateException(
-                    "Couldn't read stack trace - make sure main() calls RUN_TEST with test as parameter");
+    // A discovered test method. Its name is known up front, so it doesn't depend on reading the stack
+    private static final class NamedTest implements Runnable {
+
+        final Method method;
+        final String name;
+
+        NamedTest(Method method) {
+            method.setAccessible(true);
+            this.method = method;
+            this.name = method.getName();
+        }
+
+        @Override
+        public void run() {
+            try {
+                method.invoke(null);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            } catch (InvocationTargetException e) {
+                Test.<RuntimeException>rethrow(e.getCause());
+            }
         }
-        return traces;
     }
 
-    private static String function() {
-        return currentFunc;
+    // Throws a test's checked exceptions unwrapped, so they are reported as what the test threw
+    @SuppressWarnings("unchecked")
+    private static <X extends Throwable> void rethrow(Throwable e) throws X {
+        throw (X) e;
     }
 
-    private static void initTest() {
+    // Child JVMs for RUN_SHARDED. A child writes each result to a file as soon as the test finishes, so the
+    // results before a crash survive it
+    private static final class Shard {
 
-        StackTraceElement[] stack = readStack();
-        StackTraceElement trace = stack[stack.length - 3];
+        static void run(Class<?> test_class, List<String> names, List<CompletableFuture<TestResult>> results) {
+            int next = 0;
+            while (next < names.size()) {
+                List<TestResult> finished = new ArrayList<>();
+                int exitCode;
+                try {
+                    Path file = Files.createTempFile("test-shard", ".bin");
+                    try {
+                        List<String> command = new ArrayList<>();
+                        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+                        command.addAll(jvmArguments());
+                        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+                                Test.class.getName(), "--shard", test_class.getName(), file.toString()));
+                        command.addAll(names.subList(next, names.size()));
+                        Process process = new ProcessBuilder(command).inheritIO().start();
+                        exitCode = waitFor(process);
+                        read(file, finished);
+                    } finally {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException e) {
+                    for (int i = next; i < names.size(); i++) {
+                        results.get(i).complete(crashed(names.get(i), e));
+                    }
+                    return;
+                }
 
-        currentFunc = trace.getMethodName();
-        currentLine = trace.getLineNumber();
-        currentFile = trace.getFileName();
-    }
+                for (TestResult result : finished) {
+                    results.get(next++).complete(result);
+                }
+                // The JVM died during the next test. Report it and carry on with the rest in a new JVM
+                if (next < names.size()) {
+                    results.get(next).complete(crashed(names.get(next),
+                            new IllegalStateException("Test JVM exited with code " + exitCode)));
+                    next++;
+                }
+            }
+        }
 
-    private static <T> void handleFailedTest(T expected, T actual, String message) {
-        allPassed = false;
+        private static int waitFor(Process process) {
+            while (true) {
+                try {
+                    return process.waitFor();
+                } catch (InterruptedException e) {
+                }
+            }
+        }
 
-        String failMsg = currentFile + ":" + currentLine;
-        if (expected != null && actual != null) {
-            failMsg = String.format(failMsg + " - Expected %s, was %s", expected.toString(), actual.toString());
-        } else if (expected == null && actual != null) {
-            failMsg = String.format(failMsg + " - Expected %s, was %s", "null", actual.toString());
+        // Flags this JVM was started with, such as -ea, -Xmx, -D and agents, so tests behave the same in a child.
+        // A debugger agent is left out, as every child would try to listen on the same port
+        private static List<String> jvmArguments() {
+            List<String> arguments = new ArrayList<>();
+            for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (!argument.startsWith("-agentlib:jdwp") && !argument.startsWith("-Xrunjdwp"))
+                    arguments.add(argument);
+            }
+            return arguments;
         }
 
-        if (message != null) {
-            failMsg += " - " + message;
+        // The cause is in this JVM, not the test, so it gets no stack trace
+        private static TestResult crashed(String name, Exception cause) {
+            cause.setStackTrace(new StackTraceElement[0]);
+            return new TestResult(name, TestResult.Status.EXCEPT, Collections.emptyList(), cause, 0, 0, 0, 0,
+                    Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
         }
-        testMessages.add(failMsg);
-    }
 
-    private static <T> void handleFailedTestWithin(Double delta, T expected, T actual, String message) {
-        allPassed = false;
+        // Results are length prefixed, so a record cut short by a crash is simply dropped
+        private static void read(Path file, List<TestResult> finished) throws IOException {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file.toFile())))) {
+                while (true) {
+                    byte[] record = new byte[in.readInt()];
+                    in.readFully(record);
+                    try (ObjectInputStream object = new ObjectInputStream(new ByteArrayInputStream(record))) {
+                        finished.add((TestResult) object.readObject());
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException(e);
+                    }
+                }
+            } catch (EOFException e) {
+            }
+        }
 
-        String failMsg = currentFile + ":" + currentLine;
-        if (expected != null || actual != null) {
-            failMsg = String.format(failMsg + " - Expected %s within %s, was %s", expected.toString(), delta.toString(),
-                    actual.toString());
+        // Reporter of a child JVM
+        static final class Writer implements Reporter {
+
+            private final DataOutputStream out;
+
+            Writer(String path) {
+                try {
+                    out = new DataOutputStream(new FileOutputStream(path));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public void testFinished(TestResult result) {
+                byte[] record;
+                try {
+                    record = serialize(result);
+                } catch (IOException e) {
+                    // Something the test threw can't be serialized. Send its type, message and trace instead
+                    RuntimeException copy = new RuntimeException(
+                            result.exception.getClass().getName() + ": " + result.exception.getMessage());
+                    copy.setStackTrace(result.exception.getStackTrace());
+                    record = serializeUnchecked(new TestResult(result.name, result.status, result.failures, copy,
+                            (long) (result.wallMs * 1e6), (long) (result.cpuMs * 1e6), result.assertions,
+                            result.timeoutMs, result.experiments, result.comparisons, result.scalings));
+                }
+                try {
+                    out.writeInt(record.length);
+                    out.write(record);
+                    out.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public void end() {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            private static byte[] serialize(TestResult result) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream object = new ObjectOutputStream(bytes)) {
+                    object.writeObject(result);
+                }
+                return bytes.toByteArray();
+            }
+
+            private static byte[] serializeUnchecked(TestResult result) {
+                try {
+                    return serialize(result);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
         }
-        if (message != null) {
-            failMsg += " - " + message;
+    }
+
+    private static TestResult awaitResult(Future<TestResult> result) {
+        while (true) {
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
         }
-        testMessages.add(failMsg);
     }
 
-    /**
-     * Test that two values are within a given delta when compared using compareTo
-     * 
-     * @param delta     The maximum allowed difference between expected and actual. delta > 0
-     * @param expected  Expected value, expected != null
-     * @param actual    Actual value, actual != null
-     * @param message   A descriptive message to be printed if the test fails
-     * 
-     * post: Difference between expected and actual computed using expected.comapreTo(actual)
-     */
-    public static <T extends Comparable<T>> void ASSERT_NUM_WITHIN_MESSAGE(Double delta, T expected, T actual,
-            String message) {
-        initTest();
-        if (Math.abs(expected.compareTo(actual)) > delta)
-            handleFailedTestWithin(delta, expected, actual, message);
+    // Runs a test in a fresh context and returns its result. Name resolution in findTestFrame() looks for
+    // this frame, so the test function is always the frame directly above it
+    private static TestResult execute(Runnable test) {
+        return execute(new TestContext(), test);
     }
 
-    /**
-    * Test that two values are within a given delta when compared using compareTo
-    * 
-    * @param delta     The maximum allowed difference between expected and actual. delta > 0
-    * @param expected  Expected value, expected != null
-    * @param actual    Actual value, actual != null
-    * 
-    * post: Difference between expected and actual computed using expected.comapreTo(actual)
-    */
-    public static <T extends Comparable<T>> void ASSERT_NUM_WITHIN(Double delta, T expected, T actual) {
-        ASSERT_NUM_WITHIN_MESSAGE(delta, expected, actual, null);
+    private static TestResult execute(TestContext ctx, Runnable test) {
+        TestContext previous = context.get();
+        context.set(ctx);
+        if (test instanceof NamedTest)
+            ctx.currentFunc = ((NamedTest) test).name;
+
+        Metrics.INSTANCE.started(ctx);
+        TestEvent event = recording() ? new TestEvent() : null;
+        if (event != null)
+            event.begin();
+        long cpuStart = cpuTime();
+        long start = System.nanoTime();
+        try {
+            test.run();
+        } catch (Exception e) {
+            ctx.exception = e;
+            if (ctx.currentFunc == null)
+                ctx.currentFunc = testName(e.getStackTrace());
+        } finally {
+            ctx.wallNanos = System.nanoTime() - start;
+            ctx.finish(cpuTime() - cpuStart);
+            context.set(previous);
+            Metrics.INSTANCE.stopped(ctx);
+            if (event != null && event.shouldCommit()) {
+                event.test = ctx.currentFunc;
+                event.status = ctx.status().name();
+                event.assertions = ctx.assertions.intValue();
+                event.commit();
+            }
+        }
+        return ctx.result();
+    }
+
+    // CPU time of the current thread, or 0 where the JVM can't measure it
+    private static long cpuTime() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : 0;
+    }
+
+    // Name of a test that threw or timed out before any assertion resolved it: the frame directly above
+    // execute(), or null when that frame belongs to this library, as when the test hasn't started yet
+    private static String testName(StackTraceElement[] trace) {
+        for (int i = 1; i < trace.length; i++) {
+            if (trace[i].getClassName().equals(Test.class.getName()) && trace[i].getMethodName().equals("execute")) {
+                // Another thread's stack includes the method reference's lambda frame, an exception's doesn't
+                int above = i - 1;
+                while (above > 0 && trace[above].getClassName().contains("$$Lambda"))
+                    above--;
+                String caller = trace[above].getClassName();
+                boolean library = caller.equals(Test.class.getName()) || caller.startsWith(Test.class.getName() + "$")
+                        || caller.contains("$$Lambda");
+                return library ? null : trace[above].getMethodName();
+            }
+        }
+        return null;
+    }
+
+    // Results reach the reporters one at a time, in the order the tests were given
+    private static synchronized void report(TestResult result) {
+        Metrics.INSTANCE.finished(result);
+        for (Reporter reporter : reporters) {
+            reporter.testFinished(result);
+        }
     }
 
     /**
-     * Assert that two objects are equal. Comparison is done using the equals() method
-     * 
-     * @param expected  Expected value, expected != null
-     * @param actual    Actual value, actual != null
-     * @param message   A descriptive message to be printed if the test fails
-     * 
+     * Call this before beginning unit testing.
      */
-    public static void ASSERT_EQUAL_MESSAGE(Object expected, Object actual, String message) {
-        initTest();
-        if (!expected.equals(actual)) {
-            handleFailedTest(expected, actual, message);
-        }
+    public static void BEGIN() {
+        BEGIN(Runtime.getRuntime().availableProcessors());
     }
 
     /**
-     * Assert a reference is null
-     * 
-     * @param actual    Actual value
+     * Call this before beginning unit testing.
      * 
+     * @param parallelism   Maximum number of tests RUN_TESTS will run at once, parallelism > 0
      */
-    public static void ASSERT_NULL(Object actual) {
-        ASSERT_NULL_MESSAGE(actual, null);
+    public static void BEGIN(int parallelism) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("Parallelism must be positive!");
+        Test.parallelism = parallelism;
+
+        String file = null;
+        for (StackTraceElement trace : readStack()) {
+            if (!trace.getClassName().equals(Test.class.getName()) && !trace.getClassName().equals(Thread.class.getName())) {
+                file = trace.getFileName();
+                break;
+            }
+        }
+        Metrics.INSTANCE.register();
+        for (Reporter reporter : reporters) {
+            reporter.begin(file);
+        }
     }
 
     /**
-     * Assert a reference is null
-     * 
-     * @param actual    Actual value
-     * @param message   A descriptive message to be printed if the test fails
-     * 
+     * Call this after testing. Finishes and closes every reporter, then exits
      */
-    public static void ASSERT_NULL_MESSAGE(Object actual, String message) {
-        initTest();
-        if (actual != null) {
-            handleFailedTest(null, actual, message);
+    public static void END() {
+        if (!strays.allPassed)
+            report(strays.result());
+        for (Reporter reporter : reporters) {
+            reporter.end();
         }
+        if (baseline != null)
+            baseline.save();
+        System.exit(0);
     }
 
     /**
-     * Assert that two objects are equal. Comparison is done using the equals() method
-     * 
-     * @param expected  Expected value, expected != null
-     * @param actual    Actual value, actual != null
+     * Compare every experiment against times saved by earlier runs, and save this run's times at END.
+     * Sizes without a saved time are added, saved times are kept so a slow drift is still caught.
+     * Call before BEGIN
      * 
+     * @param path          File the baseline is kept in. Created if it doesn't exist
+     * @param threshold     Slowdown that counts as a regression, 0.1 is 10% slower. threshold >= 0
      */
-    public static void ASSERT_EQUAL(Object expected, Object actual) {
-        ASSERT_EQUAL_MESSAGE(expected, actual, null);
+    public static void SET_BASELINE(String path, double threshold) {
+        SET_BASELINE(path, threshold, false);
     }
 
     /**
-     * Assert a boolean result is true
-     * 
-     * @param test    A boolean test
+     * As SET_BASELINE(path, threshold), optionally replacing saved times with this run's
      * 
+     * @param path          File the baseline is kept in. Created if it doesn't exist
+     * @param threshold     Slowdown that counts as a regression, 0.1 is 10% slower. threshold >= 0
+     * @param update        Accept this run's times as the new baseline
      */
-    public static void ASSERT_TRUE(boolean test) {
-        ASSERT_TRUE_MESSAGE(test, null);
+    public static void SET_BASELINE(String path, double threshold, boolean update) {
+        if (path == null)
+            throw new IllegalArgumentException("Baseline path was null!");
+        if (!(threshold >= 0))
+            throw new IllegalArgumentException("Regression threshold must be at least 0!");
+        baseline = Baseline.load(Paths.get(path), threshold, update);
     }
 
     /**
-     * Assert a boolean result is false
-     * 
-     * @param test    A boolean test
+     * Send results to another reporter as well. Call before BEGIN
      * 
+     * @param reporter  Receives every test result, reporter != null
      */
-    public static void ASSERT_FALSE(boolean test) {
-        ASSERT_FALSE_MESSAGE(test, null);
+    public static void ADD_REPORTER(Reporter reporter) {
+        if (reporter == null)
+            throw new IllegalArgumentException("Reporter was null!");
+        reporters.add(reporter);
     }
 
     /**
-     * Assert a boolean result is true
-     * 
-     * @param test      A boolean test
-     * @param message   A descriptive message to be printed if the test fails
+     * Replace the reporters, including the default console reporter. Call before BEGIN
      * 
+     * @param reporters     Receive every test result. Include a ConsoleReporter to keep console output
      */
-    public static void ASSERT_TRUE_MESSAGE(boolean test, String message) {
-        initTest();
-        if (!test)
-            handleFailedTest(true, test, message);
-
+    public static void SET_REPORTERS(Reporter... reporters) {
+        if (reporters == null || Arrays.asList(reporters).contains(null))
+            throw new IllegalArgumentException("Reporter was null!");
+        Test.reporters.clear();
+        Test.reporters.addAll(Arrays.asList(reporters));
     }
 
-    /**
+    private static StackTraceElement[] readStack() {
+        StackTraceElement[] traces;
+        try {
+            traces = Thread.currentThread().getStackTrace();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalStateException(
+                    "Couldn't read stack trace - make sure main() calls RUN_TEST with test as parameter");
+        }
+        return traces;
+    }
+
+    // The context of the test this thread is running or working for. Other threads, such as the common pool's
+    // or ones the test started itself, work for the running test while there is only one. With several running
+    // they can't be told apart, so their assertions and those left over from a finished test are strays
+    private static TestContext current() {
+        TestContext ctx = context.get();
+        if (ctx != null && !ctx.finished)
+            return ctx;
+        // A thread the test started itself, while it's the only test running, works for that test
+        TestContext only = ctx == null ? Metrics.INSTANCE.onlyRunning() : null;
+        return only != null ? only : strays;
+    }
+
+    private static TestContext strays() {
+        TestContext ctx = new TestContext();
+        ctx.currentFunc = "assertions outside of a running test";
+        ctx.finished = true;
+        return ctx;
+    }
+
+    // Counts an assertion. Only the test name is needed while assertions pass. It is resolved on the first
+    // assertion of each test, and the source line is resolved only once an assertion fails
+    private static void initTest() {
+        TestContext ctx = current();
+        ctx.assertion();
+        if (ctx.currentFunc == null)
+            ctx.currentFunc = resolveCallSite().func;
+    }
+
+    private static CallSite resolveCallSite() {
+        return callSite(testFrame());
+    }
+
+    // Walks down from the assertion only as far as execute()
+    private static StackWalker.StackFrame testFrame() {
+        StackWalker.StackFrame frame = walker.walk(Test::findTestFrame);
+        if (frame == null)
+            throw new IllegalStateException(
+                    "Couldn't read stack trace - make sure main() calls RUN_TEST with test as parameter");
+        return frame;
+    }
+
+    // File and line lookups are the costly part of a stack frame, so they are cached per call site
+    private static CallSite callSite(StackWalker.StackFrame frame) {
+        CallSite site = callSites.get(new CallSiteKey(frame));
+        if (site == null) {
+            site = new CallSite(frame.getFileName(), frame.getMethodName(), frame.getLineNumber());
+            CallSite cached = callSites.putIfAbsent(new CallSiteKey(frame), site);
+            if (cached != null)
+                site = cached;
+        }
+        return site;
+    }
+
+    // The test function is the last frame outside of this class above execute(), wherever the test is
+    // running. Discovered tests are invoked by NamedTest, which sits in between. Outside of a test, fall
+    // back to the first caller of this class. Method names are only read below the first caller, as reading
+    // one is the costly part of the walk
+    private static StackWalker.StackFrame findTestFrame(Stream<StackWalker.StackFrame> frames) {
+        Iterator<StackWalker.StackFrame> it = frames.iterator();
+        return findTestFrame(it, findCaller(it));
+    }
+
+    // The first frame outside of this class, where the assertion was called from
+    private static StackWalker.StackFrame findCaller(Iterator<StackWalker.StackFrame> frames) {
+        while (frames.hasNext()) {
+            StackWalker.StackFrame frame = frames.next();
+            if (frame.getDeclaringClass() != Test.class && frame.getDeclaringClass() != NamedTest.class)
+                return frame;
+        }
+        return null;
+    }
+
+    // Carries on from the caller down to the test function
+    private static StackWalker.StackFrame findTestFrame(Iterator<StackWalker.StackFrame> frames,
+            StackWalker.StackFrame caller) {
+        StackWalker.StackFrame previous = caller;
+        while (previous != null && frames.hasNext()) {
+            StackWalker.StackFrame frame = frames.next();
+            if (frame.getDeclaringClass() == Test.class || frame.getDeclaringClass() == NamedTest.class) {
+                if (frame.getMethodName().equals("execute"))
+                    return previous;
+            } else {
+                previous = frame;
+            }
+        }
+        return caller;
+    }
+
+    // Counts a failure at the test frame. A site the test asserted at itself is known from the caller alone,
+    // so a repeat failure there stops the walk at the caller rather than walking on down to the test
+    private static FailureLog.Entry countFailure(FailureLog failures, Stream<StackWalker.StackFrame> frames) {
+        Iterator<StackWalker.StackFrame> it = frames.iterator();
+        StackWalker.StackFrame caller = findCaller(it);
+        if (caller == null)
+            throw new IllegalStateException(
+                    "Couldn't read stack trace - make sure main() calls RUN_TEST with test as parameter");
+        FailureLog.Entry direct = failures.direct(caller);
+        if (direct != null)
+            return direct.repeat();
+        StackWalker.StackFrame frame = findTestFrame(it, caller);
+        return failures.count(frame, frame == caller);
+    }
+
+    // Marks the test failed and finds where. Returns null once the call site has failed often enough that
+    // failures there are only counted, so the message isn't built at all
+    private static FailureLog.Entry failedAt(TestContext ctx) {
+        ctx.allPassed = false;
+        FailureLog.Entry failure = walker.walk(frames -> countFailure(ctx.failures, frames));
+        if (failure == null)
+            return null;
+        CallSite site = failure.site;
+        if (ctx.currentFunc == null)
+            ctx.currentFunc = site.func;
+        AssertionFailedEvent event = recording() ? new AssertionFailedEvent() : null;
+        if (event != null && event.shouldCommit()) {
+            event.test = ctx.currentFunc;
+            event.location = site.file + ":" + site.line;
+            event.commit();
+        }
+        return failure;
+    }
+
+    private static void addFailure(FailureLog.Entry failure, String description, String message) {
+        String failMsg = failure.site.file + ":" + failure.site.line;
+        if (description != null) {
+            failMsg += " - " + description;
+        }
+        if (message != null) {
+            failMsg += " - " + message;
+        }
+        failure.add(failMsg);
+    }
+
+    // A value as shown in a failure message, cut short at the message limit. Strings and collections are cut
+    // before they are copied, so a huge value doesn't build a huge message
+    private static String describe(Object value) {
+        int limit = FailureLog.MAX_MESSAGE;
+        if (value instanceof CharSequence) {
+            CharSequence text = (CharSequence) value;
+            return text.length() <= limit ? text.toString()
+                    : text.subSequence(0, limit) + "... (" + text.length() + " characters)";
+        }
+        if (value instanceof Collection) {
+            Collection<?> elements = (Collection<?>) value;
+            StringBuilder text = new StringBuilder("[");
+            for (Object element : elements) {
+                if (text.length() > limit)
+                    return text.append("... (").append(elements.size()).append(" elements)").toString();
+                text.append(text.length() > 1 ? ", " : "").append(element == elements ? "(this Collection)" : element);
+            }
+            return text.append("]").toString();
+        }
+        String text = String.valueOf(value);
+        return text.length() <= limit ? text : text.substring(0, limit) + "... (" + text.length() + " characters)";
+    }
+
+    private static <T> void handleFailedTest(T expected, T actual, String message) {
+        TestContext ctx = current();
+        FailureLog.Entry failure = failedAt(ctx);
+        if (failure == null)
+            return;
+
+        String description = null;
+        if (expected != null && actual != null) {
+            description = String.format("Expected %s, was %s", describe(expected), describe(actual));
+        } else if (expected == null && actual != null) {
+            description = String.format("Expected %s, was %s", "null", describe(actual));
+        }
+        addFailure(failure, description, message);
+    }
+
+    private static <T> void handleFailedTestWithin(Double delta, T expected, T actual, String message) {
+        TestContext ctx = current();
+        FailureLog.Entry failure = failedAt(ctx);
+        if (failure == null)
+            return;
+
+        String description = null;
+        if (expected != null || actual != null) {
+            description = String.format("Expected %s within %s, was %s", describe(expected), delta.toString(),
+                    describe(actual));
+        }
+        addFailure(failure, description, message);
+    }
+
+    // Arrays are described by their first differing element rather than printed in full
+    private static void handleFailedArray(Object expected, Object actual, int index, String message) {
+        TestContext ctx = current();
+        FailureLog.Entry failure = failedAt(ctx);
+        if (failure == null)
+            return;
+
+        if (expected == null || actual == null) {
+            addFailure(failure, String.format("Expected %s, was %s", expected == null ? "null" : "array",
+                    actual == null ? "null" : "array"), message);
+        } else if (index >= Array.getLength(expected)
+                || index >= Array.getLength(actual)) {
+            addFailure(failure, String.format("Expected length %d, was %d", Array.getLength(expected),
+                    Array.getLength(actual)), message);
+        } else {
+            addFailure(failure, String.format("Expected %s at index %d, was %s (expected %s, actual %s)",
+                    Array.get(expected, index), index, Array.get(actual, index), window(expected, index),
+                    window(actual, index)), message);
+        }
+    }
+
+    private static void handleFailedMismatch(String mismatch, String message) {
+        TestContext ctx = current();
+        FailureLog.Entry failure = failedAt(ctx);
+        if (failure != null)
+            addFailure(failure, mismatch, message);
+    }
+
+    // How many elements either side of a mismatch are shown
+    private static final int WINDOW = 3;
+
+    // The elements of an array around index, e.g. [..., 3, 4, 5, 6, 7, ...]
+    private static String window(Object array, int index) {
+        int from = Math.max(index - WINDOW, 0);
+        int to = Math.min(index + WINDOW + 1, Array.getLength(array));
+        StringBuilder text = new StringBuilder(from > 0 ? "[..., " : "[");
+        for (int i = from; i < to; i++) {
+            text.append(i > from ? ", " : "").append(Array.get(array, i));
+        }
+        return text.append(to < Array.getLength(array) ? ", ...]" : "]").toString();
+    }
+
+    // Walks two sequences side by side, without copying them, and describes the first difference with a few
+    // elements either side. Returns null if they hold the same elements
+    private static String describeMismatch(Iterator<?> expected, Iterator<?> actual) {
+        // The last WINDOW elements of each, expected in [0, WINDOW) and actual in [WINDOW, 2 * WINDOW)
+        Object[] recent = new Object[2 * WINDOW];
+        long index = 0;
+        while (expected.hasNext() && actual.hasNext()) {
+            Object x = expected.next();
+            Object y = actual.next();
+            if (!Objects.equals(x, y)) {
+                return String.format("Expected %s at index %d, was %s (expected %s, actual %s)", x, index, y,
+                        window(recent, 0, index, x, expected), window(recent, WINDOW, index, y, actual));
+            }
+            int slot = (int) (index % WINDOW);
+            recent[slot] = x;
+            recent[WINDOW + slot] = y;
+            index++;
+        }
+        if (!expected.hasNext() && !actual.hasNext())
+            return null;
+
+        long expectedLength = index;
+        long actualLength = index;
+        for (; expected.hasNext(); expected.next())
+            expectedLength++;
+        for (; actual.hasNext(); actual.next())
+            actualLength++;
+        return String.format("Expected length %d, was %d", expectedLength, actualLength);
+    }
+
+    // The elements of a sequence around a mismatch: those kept in recent, the mismatch and a few that follow
+    private static String window(Object[] recent, int offset, long index, Object mismatch, Iterator<?> rest) {
+        long from = Math.max(index - WINDOW, 0);
+        StringBuilder text = new StringBuilder(from > 0 ? "[..., " : "[");
+        for (long i = from; i < index; i++) {
+            text.append(recent[offset + (int) (i % WINDOW)]).append(", ");
+        }
+        text.append(mismatch);
+        for (int i = 0; i < WINDOW && rest.hasNext(); i++) {
+            text.append(", ").append(rest.next());
+        }
+        return text.append(rest.hasNext() ? ", ...]" : "]").toString();
+    }
+
+    /**
+     * Test that two values are within a given delta when compared using compareTo
+     * 
+     * @param delta     The maximum allowed difference between expected and actual. delta > 0
+     * @param expected  Expected value, expected != null
+     * @param actual    Actual value, actual != null
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     * post: Difference between numbers is computed by value, otherwise using expected.comapreTo(actual)
+     */
+    public static <T extends Comparable<T>> void ASSERT_NUM_WITHIN_MESSAGE(Double delta, T expected, T actual,
+            String message) {
+        initTest();
+        if (distance(expected, actual) > delta)
+            handleFailedTestWithin(delta, expected, actual, message);
+    }
+
+    // Numbers are compared by value. Anything else can only be compared by the sign of compareTo
+    private static <T extends Comparable<T>> double distance(T expected, T actual) {
+        if (expected instanceof Number && actual instanceof Number)
+            return Math.abs(((Number) expected).doubleValue() - ((Number) actual).doubleValue());
+        return Math.abs(expected.compareTo(actual));
+    }
+
+    /**
+    * Test that two values are within a given delta when compared using compareTo
+    * 
+    * @param delta     The maximum allowed difference between expected and actual. delta > 0
+    * @param expected  Expected value, expected != null
+    * @param actual    Actual value, actual != null
+    * 
+    * post: Difference between numbers is computed by value, otherwise using expected.comapreTo(actual)
+    */
+    public static <T extends Comparable<T>> void ASSERT_NUM_WITHIN(Double delta, T expected, T actual) {
+        ASSERT_NUM_WITHIN_MESSAGE(delta, expected, actual, null);
+    }
+
+    /**
+     * Assert that two objects are equal. Comparison is done using the equals() method
+     * 
+     * @param expected  Expected value, expected != null
+     * @param actual    Actual value, actual != null
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_EQUAL_MESSAGE(Object expected, Object actual, String message) {
+        initTest();
+        if (!expected.equals(actual)) {
+            // Large lists would make enormous messages, so only the first difference is shown
+            String mismatch = expected instanceof List && actual instanceof List
+                    ? describeMismatch(((List<?>) expected).iterator(), ((List<?>) actual).iterator())
+                    : null;
+            if (mismatch != null) {
+                handleFailedMismatch(mismatch, message);
+            } else {
+                handleFailedTest(expected, actual, message);
+            }
+        }
+    }
+
+    /**
+     * Assert a reference is null
+     * 
+     * @param actual    Actual value
+     * 
+     */
+    public static void ASSERT_NULL(Object actual) {
+        ASSERT_NULL_MESSAGE(actual, null);
+    }
+
+    /**
+     * Assert a reference is null
+     * 
+     * @param actual    Actual value
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_NULL_MESSAGE(Object actual, String message) {
+        initTest();
+        if (actual != null) {
+            handleFailedTest(null, actual, message);
+        }
+    }
+
+    /**
+     * Assert that two objects are equal. Comparison is done using the equals() method
+     * 
+     * @param expected  Expected value, expected != null
+     * @param actual    Actual value, actual != null
+     * 
+     */
+    public static void ASSERT_EQUAL(Object expected, Object actual) {
+        ASSERT_EQUAL_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Assert a boolean result is true
+     * 
+     * @param test    A boolean test
+     * 
+     */
+    public static void ASSERT_TRUE(boolean test) {
+        ASSERT_TRUE_MESSAGE(test, null);
+    }
+
+    /**
+     * Assert a boolean result is false
+     * 
+     * @param test    A boolean test
+     * 
+     */
+    public static void ASSERT_FALSE(boolean test) {
+        ASSERT_FALSE_MESSAGE(test, null);
+    }
+
+    /**
+     * Assert a boolean result is true
+     * 
+     * @param test      A boolean test
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_TRUE_MESSAGE(boolean test, String message) {
+        initTest();
+        if (!test)
+            handleFailedTest(true, test, message);
+
+    }
+
+    /**
     * Assert a boolean result is false
     * 
     * @param test       A boolean test
@@ -263,160 +1280,4123 @@ public class Test {
     }
 
     /**
-    * Prototype. Attempts to run a given function, testing that the function completes within a given time
-    * 
-    * @param time_ms    Maximum time in milliseconds to allow the function to run before triggering a failed test
-    *                   0 < time_ms
-    * @param func       The function to time. func != null
-    * @param message   A descriptive message to be printed if the test fails
-    * 
-    */
-    public static void ASSERT_WITHIN_TIMEOUT_MESSAGE(double time_ms, Runnable func, String message) {
-        initTest();
-        Thread thread = new Thread(func);
+     * Assert that two int values are equal. Does not allocate unless the assertion fails
+     * 
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_EQUAL_INT_MESSAGE(int expected, int actual, String message) {
+        initTest();
+        if (expected != actual)
+            handleFailedTest(expected, actual, message);
+    }
+
+    /**
+     * Assert that two int values are equal. Does not allocate unless the assertion fails
+     * 
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * 
+     */
+    public static void ASSERT_EQUAL_INT(int expected, int actual) {
+        ASSERT_EQUAL_INT_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Assert that two long values are equal. Does not allocate unless the assertion fails
+     * 
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_EQUAL_LONG_MESSAGE(long expected, long actual, String message) {
+        initTest();
+        if (expected != actual)
+            handleFailedTest(expected, actual, message);
+    }
+
+    /**
+     * Assert that two long values are equal. Does not allocate unless the assertion fails
+     * 
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * 
+     */
+    public static void ASSERT_EQUAL_LONG(long expected, long actual) {
+        ASSERT_EQUAL_LONG_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Assert that two double values are equal. Values are compared exactly, see ASSERT_DOUBLE_WITHIN. Does not allocate unless the assertion fails
+     * 
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_EQUAL_DOUBLE_MESSAGE(double expected, double actual, String message) {
+        initTest();
+        if (Double.compare(expected, actual) != 0)
+            handleFailedTest(expected, actual, message);
+    }
+
+    /**
+     * Assert that two double values are equal. Values are compared exactly, see ASSERT_DOUBLE_WITHIN. Does not allocate unless the assertion fails
+     * 
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * 
+     */
+    public static void ASSERT_EQUAL_DOUBLE(double expected, double actual) {
+        ASSERT_EQUAL_DOUBLE_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Assert that two char values are equal. Does not allocate unless the assertion fails
+     * 
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_EQUAL_CHAR_MESSAGE(char expected, char actual, String message) {
+        initTest();
+        if (expected != actual)
+            handleFailedTest(expected, actual, message);
+    }
+
+    /**
+     * Assert that two char values are equal. Does not allocate unless the assertion fails
+     * 
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * 
+     */
+    public static void ASSERT_EQUAL_CHAR(char expected, char actual) {
+        ASSERT_EQUAL_CHAR_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Test that two int values are within a given delta of each other. Does not allocate unless the
+     * assertion fails
+     * 
+     * @param delta     The maximum allowed difference between expected and actual. delta >= 0
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_INT_WITHIN_MESSAGE(int delta, int expected, int actual, String message) {
+        if (delta < 0)
+            throw new IllegalArgumentException("Delta must be at least 0!");
+        initTest();
+        if (Math.abs((long) expected - actual) > delta)
+            handleFailedTestWithin((double) delta, expected, actual, message);
+    }
+
+    /**
+     * Test that two int values are within a given delta of each other. Does not allocate unless the
+     * assertion fails
+     * 
+     * @param delta     The maximum allowed difference between expected and actual. delta >= 0
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * 
+     */
+    public static void ASSERT_INT_WITHIN(int delta, int expected, int actual) {
+        ASSERT_INT_WITHIN_MESSAGE(delta, expected, actual, null);
+    }
+
+    /**
+     * Test that two long values are within a given delta of each other. Does not allocate unless the
+     * assertion fails
+     * 
+     * @param delta     The maximum allowed difference between expected and actual. delta >= 0
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_LONG_WITHIN_MESSAGE(long delta, long expected, long actual, String message) {
+        if (delta < 0)
+            throw new IllegalArgumentException("Delta must be at least 0!");
+        initTest();
+        if (Long.compareUnsigned(expected >= actual ? expected - actual : actual - expected, delta) > 0)
+            handleFailedTestWithin((double) delta, expected, actual, message);
+    }
+
+    /**
+     * Test that two long values are within a given delta of each other. Does not allocate unless the
+     * assertion fails
+     * 
+     * @param delta     The maximum allowed difference between expected and actual. delta >= 0
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * 
+     */
+    public static void ASSERT_LONG_WITHIN(long delta, long expected, long actual) {
+        ASSERT_LONG_WITHIN_MESSAGE(delta, expected, actual, null);
+    }
+
+    /**
+     * Test that two double values are within a given delta of each other. Does not allocate unless the
+     * assertion fails
+     * 
+     * @param delta     The maximum allowed difference between expected and actual. delta >= 0
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_DOUBLE_WITHIN_MESSAGE(double delta, double expected, double actual, String message) {
+        if (!(delta >= 0))
+            throw new IllegalArgumentException("Delta must be at least 0!");
+        initTest();
+        if (!(Math.abs(expected - actual) <= delta))
+            handleFailedTestWithin(delta, expected, actual, message);
+    }
+
+    /**
+     * Test that two double values are within a given delta of each other. Does not allocate unless the
+     * assertion fails
+     * 
+     * @param delta     The maximum allowed difference between expected and actual. delta >= 0
+     * @param expected  Expected value
+     * @param actual    Actual value
+     * 
+     */
+    public static void ASSERT_DOUBLE_WITHIN(double delta, double expected, double actual) {
+        ASSERT_DOUBLE_WITHIN_MESSAGE(delta, expected, actual, null);
+    }
+
+    /**
+     * Assert that two int arrays hold the same elements. Same as ASSERT_ARRAY_EQUAL_MESSAGE
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_EQUAL_INT_ARRAY_MESSAGE(int[] expected, int[] actual, String message) {
+        ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, message);
+    }
+
+    /**
+     * Assert that two int arrays hold the same elements. Same as ASSERT_ARRAY_EQUAL
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_EQUAL_INT_ARRAY(int[] expected, int[] actual) {
+        ASSERT_ARRAY_EQUAL(expected, actual);
+    }
+
+    /**
+     * Assert that two long arrays hold the same elements. Same as ASSERT_ARRAY_EQUAL_MESSAGE
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_EQUAL_LONG_ARRAY_MESSAGE(long[] expected, long[] actual, String message) {
+        ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, message);
+    }
+
+    /**
+     * Assert that two long arrays hold the same elements. Same as ASSERT_ARRAY_EQUAL
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_EQUAL_LONG_ARRAY(long[] expected, long[] actual) {
+        ASSERT_ARRAY_EQUAL(expected, actual);
+    }
+
+    /**
+     * Assert that two double arrays hold the same elements. Same as ASSERT_ARRAY_EQUAL_MESSAGE
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_EQUAL_DOUBLE_ARRAY_MESSAGE(double[] expected, double[] actual, String message) {
+        ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, message);
+    }
+
+    /**
+     * Assert that two double arrays hold the same elements. Same as ASSERT_ARRAY_EQUAL
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_EQUAL_DOUBLE_ARRAY(double[] expected, double[] actual) {
+        ASSERT_ARRAY_EQUAL(expected, actual);
+    }
+
+    /**
+     * Assert that two char arrays hold the same elements. Same as ASSERT_ARRAY_EQUAL_MESSAGE
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_EQUAL_CHAR_ARRAY_MESSAGE(char[] expected, char[] actual, String message) {
+        ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, message);
+    }
+
+    /**
+     * Assert that two char arrays hold the same elements. Same as ASSERT_ARRAY_EQUAL
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_EQUAL_CHAR_ARRAY(char[] expected, char[] actual) {
+        ASSERT_ARRAY_EQUAL(expected, actual);
+    }
+
+    /**
+     * Test that each element of a double array is within a given delta of the expected element. Does not
+     * allocate unless the assertion fails
+     * 
+     * @param delta     The maximum allowed difference between each pair of elements. delta >= 0
+     * @param expected  Expected elements, expected != null
+     * @param actual    Actual elements, actual != null
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_DOUBLE_ARRAY_WITHIN_MESSAGE(double delta, double[] expected, double[] actual,
+            String message) {
+        if (!(delta >= 0))
+            throw new IllegalArgumentException("Delta must be at least 0!");
+        initTest();
+        int length = Math.min(expected.length, actual.length);
+        for (int index = 0; index < length; index++) {
+            if (!(Math.abs(expected[index] - actual[index]) <= delta)) {
+                handleFailedArray(expected, actual, index, message);
+                return;
+            }
+        }
+        if (expected.length != actual.length)
+            handleFailedArray(expected, actual, length, message);
+    }
+
+    /**
+     * Test that each element of a double array is within a given delta of the expected element. Does not
+     * allocate unless the assertion fails
+     * 
+     * @param delta     The maximum allowed difference between each pair of elements. delta >= 0
+     * @param expected  Expected elements, expected != null
+     * @param actual    Actual elements, actual != null
+     * 
+     */
+    public static void ASSERT_DOUBLE_ARRAY_WITHIN(double delta, double[] expected, double[] actual) {
+        ASSERT_DOUBLE_ARRAY_WITHIN_MESSAGE(delta, expected, actual, null);
+    }
+
+    /**
+     * Assert that two boolean arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL_MESSAGE(boolean[] expected, boolean[] actual, String message) {
+        initTest();
+        if (!Arrays.equals(expected, actual))
+            handleFailedArray(expected, actual, mismatch(expected, actual), message);
+    }
+
+    /**
+     * Assert that two boolean arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL(boolean[] expected, boolean[] actual) {
+        ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Assert that two byte arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL_MESSAGE(byte[] expected, byte[] actual, String message) {
+        initTest();
+        if (!Arrays.equals(expected, actual))
+            handleFailedArray(expected, actual, mismatch(expected, actual), message);
+    }
+
+    /**
+     * Assert that two byte arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL(byte[] expected, byte[] actual) {
+        ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Assert that two short arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL_MESSAGE(short[] expected, short[] actual, String message) {
+        initTest();
+        if (!Arrays.equals(expected, actual))
+            handleFailedArray(expected, actual, mismatch(expected, actual), message);
+    }
+
+    /**
+     * Assert that two short arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL(short[] expected, short[] actual) {
+        ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Assert that two char arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL_MESSAGE(char[] expected, char[] actual, String message) {
+        initTest();
+        if (!Arrays.equals(expected, actual))
+            handleFailedArray(expected, actual, mismatch(expected, actual), message);
+    }
+
+    /**
+     * Assert that two char arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL(char[] expected, char[] actual) {
+        ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Assert that two int arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL_MESSAGE(int[] expected, int[] actual, String message) {
+        initTest();
+        if (!Arrays.equals(expected, actual))
+            handleFailedArray(expected, actual, mismatch(expected, actual), message);
+    }
+
+    /**
+     * Assert that two int arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL(int[] expected, int[] actual) {
+        ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Assert that two long arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL_MESSAGE(long[] expected, long[] actual, String message) {
+        initTest();
+        if (!Arrays.equals(expected, actual))
+            handleFailedArray(expected, actual, mismatch(expected, actual), message);
+    }
+
+    /**
+     * Assert that two long arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL(long[] expected, long[] actual) {
+        ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Assert that two float arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL_MESSAGE(float[] expected, float[] actual, String message) {
+        initTest();
+        if (!Arrays.equals(expected, actual))
+            handleFailedArray(expected, actual, mismatch(expected, actual), message);
+    }
+
+    /**
+     * Assert that two float arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL(float[] expected, float[] actual) {
+        ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Assert that two double arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL_MESSAGE(double[] expected, double[] actual, String message) {
+        initTest();
+        if (!Arrays.equals(expected, actual))
+            handleFailedArray(expected, actual, mismatch(expected, actual), message);
+    }
+
+    /**
+     * Assert that two double arrays hold the same elements. Does not allocate unless the assertion fails.
+     * On failure, shows the first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL(double[] expected, double[] actual) {
+        ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Assert that two Object arrays hold the same elements, compared using equals(). On failure, shows the
+     * first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL_MESSAGE(Object[] expected, Object[] actual, String message) {
+        initTest();
+        if (!Arrays.equals(expected, actual))
+            handleFailedArray(expected, actual, mismatch(expected, actual), message);
+    }
+
+    /**
+     * Assert that two Object arrays hold the same elements, compared using equals(). On failure, shows the
+     * first mismatching index and the elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_ARRAY_EQUAL(Object[] expected, Object[] actual) {
+        ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, null);
+    }
+
+    /**
+     * Assert that two iterables hold the same elements in the same order, compared using equals(). Both are
+     * walked side by side without being copied. On failure, shows the first mismatching index and the
+     * elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * @param message   A descriptive message to be printed if the test fails
+     * 
+     */
+    public static void ASSERT_ITERABLE_EQUAL_MESSAGE(Iterable<?> expected, Iterable<?> actual, String message) {
+        initTest();
+        if (expected == null || actual == null) {
+            if (expected != actual)
+                handleFailedTest(expected == null ? "null" : "iterable", actual == null ? "null" : "iterable",
+                        message);
+            return;
+        }
+        String mismatch = describeMismatch(expected.iterator(), actual.iterator());
+        if (mismatch != null)
+            handleFailedMismatch(mismatch, message);
+    }
+
+    /**
+     * Assert that two iterables hold the same elements in the same order, compared using equals(). Both are
+     * walked side by side without being copied. On failure, shows the first mismatching index and the
+     * elements around it
+     * 
+     * @param expected  Expected elements
+     * @param actual    Actual elements
+     * 
+     */
+    public static void ASSERT_ITERABLE_EQUAL(Iterable<?> expected, Iterable<?> actual) {
+        ASSERT_ITERABLE_EQUAL_MESSAGE(expected, actual, null);
+    }
+
+    // Index of the first difference, found with the vectorized Arrays.mismatch
+    private static int mismatch(boolean[] expected, boolean[] actual) {
+        return expected == null || actual == null ? 0 : Arrays.mismatch(expected, actual);
+    }
+
+    private static int mismatch(byte[] expected, byte[] actual) {
+        return expected == null || actual == null ? 0 : Arrays.mismatch(expected, actual);
+    }
+
+    private static int mismatch(short[] expected, short[] actual) {
+        return expected == null || actual == null ? 0 : Arrays.mismatch(expected, actual);
+    }
+
+    private static int mismatch(char[] expected, char[] actual) {
+        return expected == null || actual == null ? 0 : Arrays.mismatch(expected, actual);
+    }
+
+    private static int mismatch(int[] expected, int[] actual) {
+        return expected == null || actual == null ? 0 : Arrays.mismatch(expected, actual);
+    }
+
+    private static int mismatch(long[] expected, long[] actual) {
+        return expected == null || actual == null ? 0 : Arrays.mismatch(expected, actual);
+    }
+
+    private static int mismatch(float[] expected, float[] actual) {
+        return expected == null || actual == null ? 0 : Arrays.mismatch(expected, actual);
+    }
+
+    private static int mismatch(double[] expected, double[] actual) {
+        return expected == null || actual == null ? 0 : Arrays.mismatch(expected, actual);
+    }
+
+    private static int mismatch(Object[] expected, Object[] actual) {
+        return expected == null || actual == null ? 0 : Arrays.mismatch(expected, actual);
+    }
+
+    /**
+    * Prototype. Attempts to run a given function, testing that the function completes within a given time
+    * 
+    * @param time_ms    Maximum time in milliseconds to allow the function to run before triggering a failed test
+    *                   0 < time_ms
+    * @param func       The function to time. func != null
+    * @param message   A descriptive message to be printed if the test fails
+    * 
+    */
+    public static void ASSERT_WITHIN_TIMEOUT_MESSAGE(double time_ms, Runnable func, String message) {
+        initTest();
+        if (func == null || !(time_ms > 0))
+            throw new IllegalArgumentException("Function must not be null and time must be positive!");
+
+        Timeouts.Result result = Timeouts.run(func, time_ms);
+        if (!result.finished) {
+            handleFailedTest(String.format("within %.3fms", time_ms), String.format("%.3fms, cancelled%s",
+                    result.elapsedMs(), result.runaway ? " but still running, as it ignores interrupts" : ""),
+                    message);
+        }
+    }
+
+    // Runs work on a bounded pool of daemon threads with a deadline, so timeouts don't start a thread each. The
+    // deadline counts from when the work starts, and work that can't start within it times out too. Overdue work
+    // is interrupted: it stops early if it waits or checks Thread.interrupted(). Work that ignores the interrupt
+    // keeps its thread until it returns and is reported as a runaway. Once runaways hold every thread, new work
+    // is refused rather than queued behind them
+    private static final class Timeouts {
+
+        // Enough for a test on every core to run with a timeout and time work of its own
+        static final int THREADS = 2 * Runtime.getRuntime().availableProcessors();
+        // How long cancelled work has to stop before it counts as a runaway
+        private static final long GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final int RUNAWAY = 3;
+
+        private static final ThreadPoolExecutor pool = pool();
+        private static final AtomicInteger runaways = new AtomicInteger();
+
+        // Thrown by run() when runaways hold every thread. A type of its own, so it can't be mistaken for an
+        // IllegalStateException thrown by the timed work
+        static final class Exhausted extends IllegalStateException {
+            private static final long serialVersionUID = 1L;
+
+            Exhausted(String message) {
+                super(message);
+            }
+        }
+
+        static final class Result {
+            final boolean finished;
+            final long elapsedNanos;
+            // CPU time the work used up to when it was cancelled, 0 if it finished
+            final long cpuNanos;
+            // Whether the work was still running after it was cancelled
+            final boolean runaway;
+            // Where the work was when it was cancelled, empty if it finished or never started
+            final StackTraceElement[] stack;
+
+            Result(boolean finished, long elapsedNanos, long cpuNanos, boolean runaway, StackTraceElement[] stack) {
+                this.finished = finished;
+                this.elapsedNanos = elapsedNanos;
+                this.cpuNanos = cpuNanos;
+                this.runaway = runaway;
+                this.stack = stack;
+            }
+
+            double elapsedMs() {
+                return elapsedNanos / 1e6;
+            }
+        }
+
+        // One piece of timed work. Its state moves from QUEUED to RUNNING to DONE, or to RUNAWAY if it's still
+        // running after it was cancelled. Work cancelled while QUEUED never runs. Its CPU time is counted by
+        // whichever moves it on from RUNNING, under its lock: by the work as it ends, or once it's a runaway by
+        // the thread that cancelled it
+        private static final class Task implements Runnable {
+            final Runnable work;
+            final TestContext ctx;
+            final AtomicInteger state = new AtomicInteger(QUEUED);
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(1);
+            volatile Thread thread;
+            volatile long start;
+            volatile long end;
+            volatile long cpuStart;
+            volatile Throwable thrown;
+
+            // ctx is null for a test run with a timeout, which keeps its own context and CPU time
+            Task(Runnable work, TestContext ctx) {
+                this.work = work;
+                this.ctx = ctx;
+            }
+
+            // Set before the state leaves QUEUED, so whoever sees it running can read them
+            @Override
+            public void run() {
+                thread = Thread.currentThread();
+                cpuStart = cpuTime();
+                start = System.nanoTime();
+                if (!state.compareAndSet(QUEUED, RUNNING))
+                    return;
+                started.countDown();
+                TestContext previous = context.get();
+                context.set(ctx);
+                try {
+                    work.run();
+                } catch (Throwable e) {
+                    thrown = e;
+                } finally {
+                    end = System.nanoTime();
+                    long cpu = cpuTime() - cpuStart;
+                    context.set(previous);
+                    synchronized (this) {
+                        if (!state.compareAndSet(RUNNING, DONE))
+                            runaways.decrementAndGet();
+                        else if (ctx != null)
+                            ctx.cpuNanos.add(cpu);
+                    }
+                    // An interrupt sent as the work finished mustn't reach the next work on this thread
+                    Thread.interrupted();
+                    done.countDown();
+                }
+            }
+
+            // Interrupts the work only while it runs, so the interrupt can't outlive it
+            synchronized void interrupt() {
+                if (state.get() == RUNNING)
+                    thread.interrupt();
+            }
+        }
+
+        private static ThreadPoolExecutor pool() {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "Test-timeout");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+
+        // Exceptions thrown by the work are rethrown to the caller unwrapped, checked exceptions included
+        static Result run(Runnable work, double time_ms) {
+            return run(work, time_ms, current());
+        }
+
+        // Runs work for ctx, or for no test if ctx is null
+        static Result run(Runnable work, double time_ms, TestContext ctx) {
+            if (runaways.get() >= THREADS)
+                throw new Exhausted(String.format(
+                        "All %d timeout threads are held by timed out work that ignores interrupts!", THREADS));
+            Task task = new Task(work, ctx);
+            long limit = (long) (time_ms * 1_000_000);
+            long submitted = System.nanoTime();
+            pool.execute(task);
+
+            if (!await(task.started, limit) && task.state.compareAndSet(QUEUED, DONE))
+                return new Result(false, System.nanoTime() - submitted, 0, false, new StackTraceElement[0]);
+            if (await(task.done, Math.max(task.start + limit - System.nanoTime(), 0))) {
+                if (task.thrown != null)
+                    Test.<RuntimeException>rethrow(task.thrown);
+                return new Result(true, task.end - task.start, 0, false, new StackTraceElement[0]);
+            }
+
+            // Elapsed up to the deadline, not the wait for the work to stop
+            long elapsed = System.nanoTime() - task.start;
+            Thread thread = task.thread;
+            StackTraceElement[] stack = thread.getStackTrace();
+            long cpu = Math.max(threadCpuTime(thread) - task.cpuStart, 0);
+            task.interrupt();
+            boolean runaway = false;
+            if (!await(task.done, GRACE_NANOS)) {
+                synchronized (task) {
+                    runaway = task.state.compareAndSet(RUNNING, RUNAWAY);
+                    if (runaway) {
+                        runaways.incrementAndGet();
+                        if (ctx != null)
+                            ctx.cpuNanos.add(cpu);
+                    }
+                }
+            }
+            return new Result(false, elapsed, cpu, runaway, stack);
+        }
+
+        // Waits up to nanos for latch. An interrupt doesn't cut the wait short, but is kept for the caller
+        private static boolean await(CountDownLatch latch, long nanos) {
+            long deadline = System.nanoTime() + nanos;
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return latch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+
+        private static long threadCpuTime(Thread thread) {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            return bean.isThreadCpuTimeSupported() ? bean.getThreadCpuTime(thread.getId()) : 0;
+        }
+    }
+
+    /**
+    * Prototype. Attempts to run a given function, testing that the function completes within a given time
+    * 
+    * @param time_ms    Maximum time in milliseconds to allow the function to run before triggering a failed test
+    *                   0 < time_ms
+    * @param func       The function to time. func != null
+    * 
+    */
+    public static void ASSERT_WITHIN_TIMEOUT(double time_ms, Runnable r) {
+        ASSERT_WITHIN_TIMEOUT_MESSAGE(time_ms, r, null);
+    }
+
+    /**
+     * Prototype. Attempts to run big O experiments on a given operation
+     * 
+     * @param num_trials    How many experiments to run, num_trials > 0
+     * @param initial_size  The initial size of the data set. This is doubled for each subsequent run.
+     *                      This is passed as the input to the supplier function to allow for generation of sample data
+     * 
+     * @param supplier      A function that accepts initial_size and returns a parameter that will be fed into the operation function
+     * 
+     * @param operation     The operation to time. Accepts a generic <E> input parameter from the output of supplier
+     */
+    public static <E> void TIME_EXPERIMENT(int num_trials, final int initial_size, Function<Integer, E> supplier,
+            BiConsumer<Integer, E> operation) {
+        TIME_EXPERIMENT(ExperimentConfig.builder(num_trials, initial_size).build(), supplier, operation);
+    }
+
+    /**
+     * Prototype. Attempts to run big O experiments on a given operation, using the sizes described by config
+     * 
+     * @param config        Number of trials and the sizes to run them at. See ExperimentConfig.builder()
+     * @param supplier      A function that accepts a size and returns a parameter that will be fed into the operation function
+     * @param operation     The operation to time. Accepts a generic <E> input parameter from the output of supplier
+     */
+    public static <E> void TIME_EXPERIMENT(ExperimentConfig config, Function<Integer, E> supplier,
+            BiConsumer<Integer, E> operation) {
+        if (config == null || supplier == null || operation == null)
+            throw new IllegalArgumentException("Experiment arguments must not be null!");
+        Experiment<E> exp = new Experiment<>(config, supplier, operation);
+        wrapExperiment(exp);
+    }
+
+    /**
+     * Times several operations side by side on the same inputs, with 5 size doublings from initial_size.
+     * See TIME_COMPARE(ExperimentConfig, Function, Map)
+     * 
+     * @param num_trials    How many times each operation is run at each size, num_trials > 0
+     * @param initial_size  The smallest size to run, initial_size > 0
+     * @param supplier      A function that accepts a size and returns the input all operations share
+     * @param operations    Named operations to compare, at least two. The first is the baseline
+     */
+    public static <E> void TIME_COMPARE(int num_trials, int initial_size, Function<Integer, E> supplier,
+            Map<String, BiConsumer<Integer, E>> operations) {
+        TIME_COMPARE(ExperimentConfig.builder(num_trials, initial_size).build(), supplier, operations);
+    }
+
+    /**
+     * Times several operations side by side on the same inputs. At each size one input is generated and
+     * shared, and the operations take turns trial by trial so background load falls on all of them alike.
+     * Every operation is reported as a speedup over the first, with a 95% confidence interval and whether
+     * the difference is significant. Use a LinkedHashMap, or another map that keeps its order
+     * 
+     * Sizes, trials, warmup and batching come from config. Adaptive sizes, fresh inputs and
+     * repeatUntilStable aren't supported, as every operation must see the same inputs and trials. Neither
+     * are histogram and memoryBudget, as each size keeps its trial times and runs on a single input
+     * 
+     * @param config        Number of trials and the sizes to run them at. See ExperimentConfig.builder()
+     * @param supplier      A function that accepts a size and returns the input all operations share
+     * @param operations    Named operations to compare, at least two. The first is the baseline
+     */
+    public static <E> void TIME_COMPARE(ExperimentConfig config, Function<Integer, E> supplier,
+            Map<String, BiConsumer<Integer, E>> operations) {
+        if (config == null || supplier == null || operations == null)
+            throw new IllegalArgumentException("Comparison arguments must not be null!");
+        if (operations.size() < 2)
+            throw new IllegalArgumentException("Compare at least two operations!");
+        if (config.isAdaptive() || config.freshBatch > 0 || config.maxCv > 0)
+            throw new IllegalArgumentException("Comparisons need fixed sizes, shared inputs and fixed trials!");
+        if (config.histogram || config.budgeted)
+            throw new IllegalArgumentException("Comparisons don't support histograms or memory budgets!");
+        wrapComparison(new Comparison<>(config, supplier, operations));
+    }
+
+    /**
+     * Runs an operation on one shared input from 1 thread up to one per available processor, doubling each
+     * time. See TIME_SCALING(int, int, int, Function, BiConsumer)
+     * 
+     * @param operations    Calls made at every thread count, split between the threads, operations > 0
+     * @param size          Size passed to supplier and operation, size > 0
+     * @param supplier      A function that accepts size and returns the input all threads share
+     * @param operation     The operation to time. It is called from several threads at once
+     */
+    public static <E> void TIME_SCALING(int operations, int size, Function<Integer, E> supplier,
+            BiConsumer<Integer, E> operation) {
+        TIME_SCALING(operations, size, Runtime.getRuntime().availableProcessors(), supplier, operation);
+    }
+
+    /**
+     * Measures how an operation on a shared structure scales with threads, to find contention. The same
+     * number of calls is split between 1, 2, 4... threads, up to max_threads, and timed by the wall clock.
+     * Every round gets a new input. The operation is warmed up on one thread until its round times are steady
+     * before anything is timed, and thread counts are timed in turns. Reports throughput, speedup over one
+     * thread and parallel efficiency at each thread count, along with the serial fraction of Amdahl's law that
+     * fits the speedups best. Thread counts past the number of processors measure oversubscription rather than
+     * contention
+     * 
+     * @param operations    Calls made at every thread count, split between the threads, operations > 0
+     * @param size          Size passed to supplier and operation, size > 0
+     * @param max_threads   Most threads to run, max_threads > 0. Run in addition to the doublings if needed
+     * @param supplier      A function that accepts size and returns the input all threads share
+     * @param operation     The operation to time. It is called from several threads at once
+     */
+    public static <E> void TIME_SCALING(int operations, int size, int max_threads, Function<Integer, E> supplier,
+            BiConsumer<Integer, E> operation) {
+        if (operations <= 0 || size <= 0 || max_threads <= 0)
+            throw new IllegalArgumentException("Operations, size and threads must be positive!");
+        if (supplier == null || operation == null)
+            throw new IllegalArgumentException("Scaling arguments must not be null!");
+        wrapScaling(new Scaling<>(operations, size, max_threads, supplier, operation));
+    }
+
+    /**
+     * Settings for TIME_EXPERIMENT. By default trials are run at 5 sizes, doubling from the initial size.
+     * Before timing starts at each size, the operation is warmed up until its time per batch is steady.
+     * 
+     * Example: ExperimentConfig.builder(1000, 100).steps(8).growth(1.5).build()
+     */
+    public static final class ExperimentConfig {
+
+        final int numTrials;
+        final int[] sizes;
+        final double timeBudgetMs;
+        final int warmupIterations;
+        final double steadyTolerance;
+        final int maxWarmup;
+        final double maxCv;
+        final int maxStableTrials;
+        final int freshBatch;
+        final boolean parallelSetup;
+        final boolean readOnly;
+        final int batch;
+        final boolean histogram;
+        final long memoryBudget;
+        // Whether memoryBudget was set rather than left at its default
+        final boolean budgeted;
+
+        private ExperimentConfig(Builder builder, int[] sizes) {
+            numTrials = builder.numTrials;
+            timeBudgetMs = builder.timeBudgetMs;
+            warmupIterations = builder.warmupIterations;
+            steadyTolerance = builder.steadyTolerance;
+            maxWarmup = builder.maxWarmup >= 0 ? builder.maxWarmup : builder.numTrials;
+            maxCv = builder.maxCv;
+            maxStableTrials = builder.maxStableTrials;
+            freshBatch = builder.freshBatch;
+            parallelSetup = builder.parallelSetup;
+            readOnly = builder.readOnly;
+            batch = builder.batch;
+            histogram = builder.histogram;
+            memoryBudget = builder.memoryBudget > 0 ? builder.memoryBudget : Runtime.getRuntime().maxMemory() / 2;
+            budgeted = builder.memoryBudget > 0;
+            this.sizes = sizes;
+        }
+
+        boolean isAdaptive() {
+            return timeBudgetMs > 0;
+        }
+
+        /**
+         * Start a configuration
+         * 
+         * @param num_trials    How many times the operation is run at each size, num_trials > 0
+         * @param initial_size  The smallest size to run, initial_size > 0
+         */
+        public static Builder builder(int num_trials, int initial_size) {
+            return new Builder(num_trials, initial_size);
+        }
+
+        public static final class Builder {
+
+            private final int numTrials;
+            private final int initialSize;
+            private int steps = 5;
+            private double growth = 2;
+            private int[] sizes;
+            private double timeBudgetMs;
+            private int maxSize = Integer.MAX_VALUE;
+            private int warmupIterations = -1;
+            private double steadyTolerance = 0.05;
+            private int maxWarmup = -1;
+            private double maxCv;
+            private int maxStableTrials;
+            private int freshBatch;
+            private boolean parallelSetup;
+            private boolean readOnly;
+            private int batch;
+            private boolean histogram;
+            private long memoryBudget;
+
+            private Builder(int num_trials, int initial_size) {
+                if (num_trials <= 0 || initial_size <= 0)
+                    throw new IllegalArgumentException("Trials and initial size must be positive!");
+                numTrials = num_trials;
+                initialSize = initial_size;
+            }
+
+            /**
+             * @param steps     How many sizes to run, steps > 0. Ignored in adaptive mode
+             */
+            public Builder steps(int steps) {
+                if (steps <= 0)
+                    throw new IllegalArgumentException("Steps must be positive!");
+                this.steps = steps;
+                return this;
+            }
+
+            /**
+             * @param factor    How much each size grows over the previous one, factor > 1
+             */
+            public Builder growth(double factor) {
+                if (!(factor > 1))
+                    throw new IllegalArgumentException("Growth factor must be greater than 1!");
+                growth = factor;
+                return this;
+            }
+
+            /**
+             * Run exactly these sizes instead of a geometric ladder. The initial size is ignored
+             * 
+             * @param sizes     Sizes to run in increasing order, each > 0
+             */
+            public Builder sizes(int... sizes) {
+                if (sizes == null || sizes.length == 0)
+                    throw new IllegalArgumentException("Sizes must not be empty!");
+                for (int i = 0; i < sizes.length; i++) {
+                    if (sizes[i] <= 0 || (i > 0 && sizes[i] <= sizes[i - 1]))
+                        throw new IllegalArgumentException("Sizes must be positive and increasing!");
+                }
+                this.sizes = sizes.clone();
+                return this;
+            }
+
+            /**
+             * Keep growing the size until the experiment would overrun a time budget or reach a maximum size.
+             * A size is skipped once its predicted run time no longer fits in what is left of the budget
+             * 
+             * @param time_budget_ms    Wall clock time the whole experiment may take, time_budget_ms > 0
+             * @param max_size          Largest size to run
+             */
+            public Builder adaptive(double time_budget_ms, int max_size) {
+                if (!(time_budget_ms > 0) || max_size <= 0)
+                    throw new IllegalArgumentException("Time budget and maximum size must be positive!");
+                timeBudgetMs = time_budget_ms;
+                maxSize = max_size;
+                return this;
+            }
+
+            /**
+             * Run the operation a fixed number of times before timing starts at each size
+             * 
+             * @param iterations    Untimed runs of the operation, iterations >= 0. 0 disables warmup
+             */
+            public Builder warmup(int iterations) {
+                if (iterations < 0)
+                    throw new IllegalArgumentException("Warmup iterations must not be negative!");
+                warmupIterations = iterations;
+                return this;
+            }
+
+            /**
+             * Warm up in batches until the time per batch is steady, which is the default. Timing starts once
+             * several batches in a row differ by no more than the tolerance, or after max_iterations runs
+             * 
+             * @param tolerance         Allowed relative change between batches, tolerance > 0. Default 0.05
+             * @param max_iterations    Most untimed runs of the operation, max_iterations >= 0. Default num_trials
+             */
+            public Builder warmupUntilSteady(double tolerance, int max_iterations) {
+                if (!(tolerance > 0) || max_iterations < 0)
+                    throw new IllegalArgumentException("Tolerance must be positive and iterations not negative!");
+                warmupIterations = -1;
+                steadyTolerance = tolerance;
+                maxWarmup = max_iterations;
+                return this;
+            }
+
+            /**
+             * After the first num_trials trials at a size, keep adding batches of num_trials trials until the
+             * coefficient of variation (standard deviation / mean, outliers excluded) drops below max_cv
+             * 
+             * @param max_cv        Coefficient of variation to reach, max_cv > 0. 0.05 is 5%
+             * @param max_trials    Most trials to run at any one size, max_trials >= num_trials
+             */
+            public Builder repeatUntilStable(double max_cv, int max_trials) {
+                if (!(max_cv > 0) || max_trials < numTrials)
+                    throw new IllegalArgumentException("Coefficient of variation must be positive and max_trials at least num_trials!");
+                maxCv = max_cv;
+                maxStableTrials = max_trials;
+                return this;
+            }
+
+            /**
+             * Give every trial (and warmup run) its own input from the supplier, for operations that change their
+             * input. Inputs are generated batch_size at a time before the batch is timed, so setup is never
+             * part of the measured time
+             * 
+             * @param batch_size        Inputs generated ahead of time, batch_size > 0. Each is held until used
+             * @param parallel_setup    Generate each batch on idle experiment workers as well
+             */
+            public Builder freshInputs(int batch_size, boolean parallel_setup) {
+                if (batch_size <= 0)
+                    throw new IllegalArgumentException("Batch size must be positive!");
+                freshBatch = batch_size;
+                parallelSetup = parallel_setup;
+                return this;
+            }
+
+            /**
+             * Promise that the operation only reads its input, so the workers splitting the trials of a size
+             * share the size's one input. Otherwise each worker gets an input of its own from the supplier
+             */
+            public Builder readOnly() {
+                readOnly = true;
+                return this;
+            }
+
+            /**
+             * Time calls in batches, for operations too fast for the clock to time one call at a time. Each
+             * trial runs the operation on the same input enough times that one batch takes well over the cost
+             * of reading the clock. The batch is calibrated once on the first size and used for every size.
+             * Times are reported per call. Pass results to Test.BLACKHOLE so the JIT can't remove the work
+             */
+            public Builder batched() {
+                batch = Experiment.AUTO_BATCH;
+                return this;
+            }
+
+            /**
+             * Time a fixed number of calls per trial instead of calibrating the batch
+             * 
+             * @param calls     Calls timed together in each trial, calls > 0
+             */
+            public Builder batched(int calls) {
+                if (calls <= 0)
+                    throw new IllegalArgumentException("Calls per batch must be positive!");
+                batch = calls;
+                return this;
+            }
+
+            /**
+             * Count trial times in a log bucketed histogram instead of keeping every one, so memory stays the
+             * same however many trials run. Percentiles and the mean are then accurate to within 2%. Use it
+             * with millions of trials, to see the far tail
+             */
+            public Builder histogram() {
+                histogram = true;
+                return this;
+            }
+
+            /**
+             * Limit how much heap the inputs of the experiment may take at once. Sizes run side by side, and
+             * unless the operation is read only, a size splits its trials between workers that each generate
+             * their own inputs, so an experiment can hold many inputs at a time. The bytes an input takes per
+             * unit of size are measured as inputs are generated, starting with the smallest size, which runs
+             * alone. A size then only starts once its inputs fit in the budget next to those of the sizes
+             * already running, and uses fewer workers if its inputs don't fit otherwise. Inputs are assumed to
+             * grow linearly with size
+             * 
+             * @param bytes     Heap the inputs may take, bytes > 0. Default half of the maximum heap
+             */
+            public Builder memoryBudget(long bytes) {
+                if (bytes <= 0)
+                    throw new IllegalArgumentException("Memory budget must be positive!");
+                memoryBudget = bytes;
+                return this;
+            }
+
+            public ExperimentConfig build() {
+                if (batch != 0 && freshBatch > 0)
+                    throw new IllegalArgumentException("Batched calls can't use fresh inputs!");
+                if (readOnly && freshBatch > 0)
+                    throw new IllegalArgumentException("Read only operations don't need fresh inputs!");
+                return new ExperimentConfig(this, ladder());
+            }
+
+            private int[] ladder() {
+                if (sizes != null) {
+                    int count = 0;
+                    while (count < sizes.length && sizes[count] <= maxSize)
+                        count++;
+                    return Arrays.copyOf(sizes, Math.max(count, 1));
+                }
+
+                List<Integer> ladder = new ArrayList<>();
+                double size = initialSize;
+                while (size <= maxSize && (timeBudgetMs > 0 || ladder.size() < steps)) {
+                    int step = (int) Math.round(size);
+                    if (!ladder.isEmpty() && step <= ladder.get(ladder.size() - 1))
+                        step = ladder.get(ladder.size() - 1) + 1;
+                    ladder.add(step);
+                    size *= growth;
+                }
+                if (ladder.isEmpty())
+                    ladder.add(initialSize);
+                return ladder.stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+    }
+
+    /**
+     * Pass results the operation computes but doesn't otherwise use to Test.BLACKHOLE.consume, so the JIT
+     * can't remove the work that produced them. Costs about one volatile read per call
+     */
+    public static final Blackhole BLACKHOLE = new Blackhole();
+
+    /**
+     * A sink for values a timed operation would otherwise throw away. Each value is compared against fields the
+     * JIT must read again on every call, so it has to compute the value, but the branch is never taken
+     */
+    public static final class Blackhole {
+
+        private volatile int int1 = 1, int2 = 2;
+        private volatile long long1 = 1, long2 = 2;
+        private volatile double double1 = 1, double2 = 2;
+        private volatile boolean boolean1 = false, boolean2 = true;
+        private volatile Object never = new Object();
+
+        private Blackhole() {
+        }
+
+        public void consume(int value) {
+            if (value == int1 & value == int2)
+                throw new IllegalStateException("Unreachable");
+        }
+
+        public void consume(long value) {
+            if (value == long1 & value == long2)
+                throw new IllegalStateException("Unreachable");
+        }
+
+        public void consume(double value) {
+            if (value == double1 & value == double2)
+                throw new IllegalStateException("Unreachable");
+        }
+
+        public void consume(boolean value) {
+            if (value == boolean1 & value == boolean2)
+                throw new IllegalStateException("Unreachable");
+        }
+
+        public void consume(Object value) {
+            if (value == never)
+                throw new IllegalStateException("Unreachable");
+        }
+    }
+
+    private static class Experiment<E> {
+
+        private static final int MAX_THREADS = 20;
+        private static final int NANOS_PER_SEC = 1_000_000_000;
+        private static final int STEADY_BATCHES = 3;
+
+        // Batched calls: the batch doubles until one takes this many clock reads, and at least MIN_BATCH_NANOS
+        static final int AUTO_BATCH = -1;
+        private static final int BATCH_OVERHEADS = 100;
+        private static final long MIN_BATCH_NANOS = 10_000;
+        private static final int MAX_BATCH = 1 << 24;
+
+        // Bytes per call some size must allocate before memory growth is fitted, about one small object
+        private static final double MIN_FIT_BYTES = 16;
+
+        // HotSpot's per thread allocation counter, or null when this JVM doesn't provide one
+        private static final com.sun.management.ThreadMXBean allocationCounter = allocationCounter();
+
+        // Bytes the timing calls themselves allocate between two reads of the counter
+        private static final long allocationOverhead = allocationOverhead();
+
+        // Nanoseconds between two back to back reads of the thread CPU clock
+        private static final long timerOverhead = timerOverhead();
+
+        private Function<Integer, E> supplier;
+        private BiConsumer<Integer, E> operation;
+        private ForkJoinPool pool;
+        private final int numTrials;
+        private final int[] sizes;
+        private final ExperimentConfig config;
+
+        private final TestContext ctx = current();
+
+        double[] averages;
+        int[] warmups;
+        int[] batches;
+        Stats[] stats;
+        LongAdder[] allocated;
+        double[] bytesPerOp;
+        int completed;
+        ComplexityFit fit;
+        ComplexityFit memoryFit;
+        ExperimentResult result;
+
+        // CPU time of the pool's workers, added as each one exits
+        private final LongAdder workerCpu = new LongAdder();
+
+        // Set once a size has thrown, so the sizes still running stop between trials
+        private volatile boolean stopped;
+
+        // Calls per timed batch, the same for every size
+        private int batch;
+
+        // Bytes an input took per unit of size, the most of any input so far. Negative until one is generated
+        private final DoubleAccumulator bytesPerUnit = new DoubleAccumulator(Math::max, -1);
+
+        public Experiment(ExperimentConfig config, Function<Integer, E> supplier, BiConsumer<Integer, E> operation) {
+            this.supplier = supplier;
+            this.operation = operation;
+            this.config = config;
+            numTrials = config.numTrials;
+            sizes = config.sizes;
+        }
+
+        public void run() {
+            averages = new double[sizes.length];
+            warmups = new int[sizes.length];
+            batches = new int[sizes.length];
+            stats = new Stats[sizes.length];
+            allocated = new LongAdder[sizes.length];
+            bytesPerOp = new double[sizes.length];
+            batch = config.batch == AUTO_BATCH ? calibrate() : Math.max(config.batch, 1);
+
+            pool = new ForkJoinPool(Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS), Worker::new,
+                    null, false);
+            try {
+                if (config.isAdaptive()) {
+                    runAdaptive();
+                } else {
+                    runSizes(0, sizes.length);
+                    completed = sizes.length;
+                }
+            } catch (Throwable e) {
+                // Sizes that haven't started are cancelled, and those running stop at their next trial
+                stopped = true;
+                pool.shutdownNow();
+                throw e;
+            } finally {
+                pool.shutdown();
+                awaitWorkers();
+                ctx.cpuNanos.add(workerCpu.sum());
+            }
+            processResults();
+        }
+
+        // Whether any size allocated enough per call for its growth to mean anything. Below that, bytes per
+        // call are leftovers of the counter's own overhead, and fitting them gives nonsense exponents
+        private boolean allocates() {
+            for (int exp_size = 0; exp_size < completed; exp_size++) {
+                if (bytesPerOp[exp_size] >= MIN_FIT_BYTES)
+                    return true;
+            }
+            return false;
+        }
+
+        // Idle workers exit as soon as the pool is shut down, busy ones once their task returns
+        private void awaitWorkers() {
+            while (true) {
+                try {
+                    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                    return;
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+
+        private final class Worker extends ForkJoinWorkerThread {
+
+            Worker(ForkJoinPool pool) {
+                super(pool);
+            }
+
+            // Assertions in the operation count against the test running the experiment
+            @Override
+            protected void onStart() {
+                super.onStart();
+                context.set(ctx);
+            }
+
+            @Override
+            protected void onTermination(Throwable exception) {
+                workerCpu.add(cpuTime());
+                super.onTermination(exception);
+            }
+        }
+
+        // Schedules sizes [from, to) on the pool and waits for them. A size starts once its inputs fit in the
+        // memory budget next to those of the sizes still running, waiting on the oldest running size until they
+        // do. Until an input has been measured, sizes run one at a time. Exceptions from the operation are
+        // rethrown
+        private void runSizes(int from, int to) {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            double[] reserved = new double[to - from];
+            double inUse = 0;
+            int oldest = from;
+            for (int exp_size = from; exp_size < to; exp_size++) {
+                while (oldest < exp_size && !fits(exp_size, inUse)) {
+                    tasks.get(oldest - from).join();
+                    inUse -= reserved[oldest - from];
+                    oldest++;
+                }
+                reserved[exp_size - from] = footprint(exp_size);
+                inUse += reserved[exp_size - from];
+
+                final int exp_size_f = exp_size;
+                tasks.add(pool.submit(() -> runExpOfSize(exp_size_f)));
+            }
+            for (ForkJoinTask<?> task : tasks.subList(oldest - from, tasks.size())) {
+                task.join();
+            }
+        }
+
+        private boolean fits(int exp_size, double inUse) {
+            return bytesPerUnit.get() >= 0 && inUse + footprint(exp_size) <= config.memoryBudget;
+        }
+
+        // Most bytes the inputs of a size hold at once: its one shared input, or an input or batch of fresh
+        // inputs per chunk
+        private double footprint(int exp_size) {
+            return inputBytes(exp_size) * (config.readOnly ? 1 : chunks(exp_size));
+        }
+
+        // How many chunks a size splits its trials into. Chunks of a read only operation share the size's one
+        // input. Otherwise each chunk holds an input or a batch of fresh inputs of its own, so there are only
+        // as many as fit in the memory budget, but always at least one
+        private int chunks(int exp_size) {
+            int parallelism = pool.getParallelism();
+            if (config.readOnly)
+                return parallelism;
+            double bytes = inputBytes(exp_size);
+            return bytes > 0 ? (int) Math.max(1, Math.min(parallelism, config.memoryBudget / bytes)) : parallelism;
+        }
+
+        private double inputBytes(int exp_size) {
+            return Math.max(bytesPerUnit.get(), 0) * sizes[exp_size] * Math.max(config.freshBatch, 1);
+        }
+
+        // Generates an input, measuring the bytes allocated to build it. That counts any garbage left behind
+        // too, which errs toward holding fewer inputs. JVMs without an allocation counter measure the growth of
+        // the heap instead, which other threads disturb
+        private E generateInput(int size) {
+            long before = allocationCounter != null ? allocatedBytes() : usedHeap();
+            E input = supplier.apply(size);
+            long after = allocationCounter != null ? allocatedBytes() : usedHeap();
+            bytesPerUnit.accumulate((double) Math.max(after - before, 0) / size);
+            return input;
+        }
+
+        private static long usedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        // Warms up on the size's input, then splits the trials into chunks so idle workers can steal part of a
+        // large size instead of waiting on it. Chunks of a read only operation share that input. Otherwise
+        // every chunk after the first gets its own, once, and keeps it while trials are added
+        private void runExpOfSize(int exp_size) {
+
+            // Generate input data
+            int size = sizes[exp_size];
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            Inputs input = new Inputs(size);
+            AtomicReferenceArray<Inputs> inputs = new AtomicReferenceArray<>(pool.getParallelism());
+            inputs.set(0, input);
+            if (!bean.isCurrentThreadCpuTimeSupported()) {
+                throw new UnsupportedOperationException();
+            }
+            ExperimentSizeEvent event = recording() ? new ExperimentSizeEvent() : null;
+            if (event != null)
+                event.begin();
+            warmups[exp_size] = warmUp(bean, size, input);
+            batches[exp_size] = batch;
+            allocated[exp_size] = new LongAdder();
+
+            // Add batches of trials until the spread is small enough, when asked to
+            Histogram histogram = config.histogram ? new Histogram() : null;
+            long[] samples = runTrials(exp_size, inputs, numTrials, histogram);
+            Stats result = (histogram != null ? Stats.of(histogram) : Stats.of(samples)).per(batch);
+            while (config.maxCv > 0 && result.cv > config.maxCv && result.trials < config.maxStableTrials) {
+                long[] more = runTrials(exp_size, inputs, Math.min(numTrials, config.maxStableTrials - result.trials),
+                        histogram);
+                long[] all = Arrays.copyOf(samples, samples.length + more.length);
+                System.arraycopy(more, 0, all, samples.length, more.length);
+                samples = all;
+                result = (histogram != null ? Stats.of(histogram) : Stats.of(samples)).per(batch);
+            }
+
+            stats[exp_size] = result;
+            averages[exp_size] = result.mean * 1000 / NANOS_PER_SEC;
+            bytesPerOp[exp_size] = (double) allocated[exp_size].sum() / ((long) result.trials * batch);
+
+            if (event != null && event.shouldCommit()) {
+                event.test = ctx.currentFunc;
+                event.size = size;
+                event.warmup = warmups[exp_size];
+                event.trials = result.trials;
+                event.batch = batch;
+                event.mean = Math.round(result.mean);
+                event.commit();
+            }
+        }
+
+        // Runs trials in chunks and returns the time of every trial. The first chunk runs on the warmed up input at
+        // index 0, and so do the others for a read only operation. Otherwise chunk k runs on the input at index k,
+        // generated the first time it's needed. Given a histogram, each chunk counts its times in a histogram of its
+        // own, which are merged into it, and no times are returned
+        private long[] runTrials(int exp_size, AtomicReferenceArray<Inputs> inputs, int trials, Histogram histogram) {
+            int size = sizes[exp_size];
+            long[] samples = new long[histogram != null ? 0 : trials];
+            int chunks = Math.min(trials, chunks(exp_size));
+            Histogram[] counts = new Histogram[chunks];
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(chunks);
+            int offset = 0;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int from = offset;
+                int count = trials / chunks + (chunk < trials % chunks ? 1 : 0);
+                Histogram times = histogram != null ? counts[chunk] = new Histogram() : null;
+                if (chunk == 0 || config.readOnly) {
+                    tasks.add(ForkJoinTask.adapt(() -> runChunk(exp_size, inputs.get(0), samples, times, from, count)));
+                } else {
+                    // Built inside the task, so each chunk generates its inputs on its own worker
+                    int chunk_f = chunk;
+                    tasks.add(ForkJoinTask.adapt(() -> {
+                        if (inputs.get(chunk_f) == null)
+                            inputs.set(chunk_f, new Inputs(size));
+                        runChunk(exp_size, inputs.get(chunk_f), samples, times, from, count);
+                    }));
+                }
+                offset += count;
+            }
+            ForkJoinTask.invokeAll(tasks);
+            if (histogram != null) {
+                for (Histogram times : counts) {
+                    histogram.add(times);
+                }
+            }
+            return samples;
+        }
+
+        // Run some of the trials for a size, recording the thread CPU time of each into samples[from, from + count),
+        // or into the histogram when there is one. Bytes allocated by the operation are added to the total for the
+        // size. The allocation counter is read outside of the timed region
+        private void runChunk(int exp_size, Inputs input, long[] samples, Histogram histogram, int from, int count) {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            Integer size = sizes[exp_size]; // Boxed once, so calling the operation doesn't allocate
+            long bytes = 0;
+            if (batch > 1) {
+                E data = input.next();
+                for (int test = from; test < from + count && !stopped; test++) {
+                    long before = allocationCounter != null ? allocatedBytes() : 0;
+                    long start = bean.getCurrentThreadCpuTime();
+                    for (int call = 0; call < batch; call++) {
+                        operation.accept(size, data);
+                    }
+                    long time = Math.max(Math.subtractExact(bean.getCurrentThreadCpuTime(), start) - timerOverhead, 0);
+                    if (histogram != null) {
+                        histogram.record(time);
+                    } else {
+                        samples[test] = time;
+                    }
+                    if (allocationCounter != null)
+                        bytes += allocatedBytes() - before;
+                }
+                allocated[exp_size].add(Math.max(bytes - allocationOverhead * count, 0));
+                return;
+            }
+            int test = from;
+            while (test < from + count && !stopped) {
+                int ready = input.prepare(from + count - test);
+                for (int run = 0; run < ready && !stopped; run++, test++) {
+                    E data = input.next();
+                    long before = allocationCounter != null ? allocatedBytes() : 0;
+                    long start = bean.getCurrentThreadCpuTime();
+                    operation.accept(size, data);
+                    long time = Math.max(Math.subtractExact(bean.getCurrentThreadCpuTime(), start) - timerOverhead, 0);
+                    if (histogram != null) {
+                        histogram.record(time);
+                    } else {
+                        samples[test] = time;
+                    }
+                    if (allocationCounter != null)
+                        bytes += allocatedBytes() - before;
+                }
+            }
+            allocated[exp_size].add(Math.max(bytes - allocationOverhead * count, 0));
+        }
+
+        // Calibrates the batch once, on a warmed up input of the first size, before the sizes run side by side.
+        // Every size is then timed in batches of the same size, calibrated without other sizes competing
+        private int calibrate() {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!bean.isCurrentThreadCpuTimeSupported()) {
+                throw new UnsupportedOperationException();
+            }
+            Inputs input = new Inputs(sizes[0]);
+            warmUp(bean, sizes[0], input);
+            return calibrateBatch(bean, operation, sizes[0], input.next());
+        }
+
+        // Doubles the batch until one batch takes long enough that reading the clock is a small part of it.
+        // The calibration runs double as extra warmup
+        static <E> int calibrateBatch(ThreadMXBean bean, BiConsumer<Integer, E> operation, Integer size, E data) {
+            long target = Math.max(BATCH_OVERHEADS * timerOverhead, MIN_BATCH_NANOS);
+            int batch = 1;
+            while (batch < MAX_BATCH) {
+                long start = bean.getCurrentThreadCpuTime();
+                for (int call = 0; call < batch; call++) {
+                    operation.accept(size, data);
+                }
+                if (bean.getCurrentThreadCpuTime() - start - timerOverhead >= target)
+                    break;
+                batch *= 2;
+            }
+            return batch;
+        }
+
+        private static long timerOverhead() {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!bean.isCurrentThreadCpuTimeSupported())
+                return 0;
+            long overhead = Long.MAX_VALUE;
+            for (int run = 0; run < 1000; run++) {
+                long start = bean.getCurrentThreadCpuTime();
+                overhead = Math.min(overhead, bean.getCurrentThreadCpuTime() - start);
+            }
+            return overhead;
+        }
+
+        private static long allocationOverhead() {
+            if (allocationCounter == null)
+                return 0;
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            long overhead = Long.MAX_VALUE;
+            for (int run = 0; run < 100; run++) {
+                long before = allocatedBytes();
+                long start = bean.getCurrentThreadCpuTime();
+                Math.subtractExact(bean.getCurrentThreadCpuTime(), start);
+                overhead = Math.min(overhead, allocatedBytes() - before);
+            }
+            return overhead;
+        }
+
+        // Bytes the current thread has allocated so far. Only call with an allocation counter. Looked up by
+        // thread id, as getCurrentThreadAllocatedBytes() needs Java 14
+        private static long allocatedBytes() {
+            return allocationCounter.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        private static com.sun.management.ThreadMXBean allocationCounter() {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+                if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled())
+                    return hotspot;
+            }
+            return null;
+        }
+
+        // Hands out the inputs for one chunk of trials. Normally every trial shares one input. With fresh
+        // inputs, each trial takes its own from a batch that is generated before the batch is timed
+        private final class Inputs {
+
+            private final int size;
+            private final E shared;
+            private final Object[] batch;
+            private int next;
+            private int ready;
+
+            Inputs(int size) {
+                this.size = size;
+                shared = config.freshBatch > 0 ? null : generateInput(size);
+                batch = config.freshBatch > 0 ? new Object[config.freshBatch] : null;
+            }
+
+            // Make inputs ready for up to 'runs' more runs. Returns how many are ready
+            int prepare(int runs) {
+                if (batch == null)
+                    return runs;
+                if (next == ready) {
+                    next = 0;
+                    ready = Math.min(runs, batch.length);
+                    generate(0, ready);
+                }
+                return Math.min(runs, ready - next);
+            }
+
+            @SuppressWarnings("unchecked")
+            E next() {
+                if (batch == null)
+                    return shared;
+                E input = (E) batch[next];
+                batch[next++] = null;
+                return input;
+            }
+
+            // Fill batch[from, to), split across the pool when setup may run in parallel
+            private void generate(int from, int to) {
+                int pieces = Math.min(to - from, pool.getParallelism());
+                if (!config.parallelSetup || pieces <= 1) {
+                    fill(from, to);
+                    return;
+                }
+
+                List<ForkJoinTask<?>> tasks = new ArrayList<>(pieces);
+                for (int piece = 0; piece < pieces; piece++) {
+                    int start = from + (to - from) * piece / pieces;
+                    int end = from + (to - from) * (piece + 1) / pieces;
+                    tasks.add(ForkJoinTask.adapt(() -> fill(start, end)));
+                }
+                ForkJoinTask.invokeAll(tasks);
+            }
+
+            private void fill(int from, int to) {
+                for (int index = from; index < to; index++) {
+                    batch[index] = generateInput(size);
+                }
+            }
+        }
+
+        // Keeps interpreted and partly compiled runs out of the measurement. Returns the untimed runs used
+        private int warmUp(ThreadMXBean bean, Integer size, Inputs input) {
+            if (config.warmupIterations >= 0) {
+                int run = 0;
+                while (run < config.warmupIterations) {
+                    int ready = input.prepare(config.warmupIterations - run);
+                    for (int batchRun = 0; batchRun < ready; batchRun++, run++) {
+                        operation.accept(size, input.next());
+                    }
+                }
+                return config.warmupIterations;
+            }
+
+            int batch = Math.max(1, numTrials / 10);
+            int runs = 0;
+            int steadyBatches = 0;
+            long previous = -1;
+            while (steadyBatches < STEADY_BATCHES && runs + batch <= config.maxWarmup) {
+                long time = 0;
+                int run = 0;
+                while (run < batch) {
+                    int ready = input.prepare(batch - run);
+                    long start = bean.getCurrentThreadCpuTime();
+                    for (int batchRun = 0; batchRun < ready; batchRun++, run++) {
+                        operation.accept(size, input.next());
+                    }
+                    time += bean.getCurrentThreadCpuTime() - start;
+                }
+                runs += batch;
+
+                if (previous >= 0 && Math.abs(time - previous) <= config.steadyTolerance * previous) {
+                    steadyBatches++;
+                } else {
+                    steadyBatches = 0;
+                }
+                previous = time;
+            }
+            return runs;
+        }
+
+        // Runs one size at a time so each step can be weighed against the remaining budget. The next step is
+        // predicted to grow by the same factor the last one did
+        private void runAdaptive() {
+            double budget = config.timeBudgetMs * NANOS_PER_SEC / 1000;
+            long begin = System.nanoTime();
+            long previousStep = 0;
+
+            for (int exp_size = 0; exp_size < sizes.length; exp_size++) {
+                long stepStart = System.nanoTime();
+                runSizes(exp_size, exp_size + 1);
+                completed++;
+
+                long now = System.nanoTime();
+                long step = now - stepStart;
+                if (exp_size + 1 < sizes.length) {
+                    double growth = previousStep > 0 ? (double) step / previousStep
+                            : (double) sizes[exp_size + 1] / sizes[exp_size];
+                    if (now - begin + step * Math.max(growth, 1) > budget)
+                        break;
+                }
+                previousStep = step;
+            }
+        }
+
+        private static double toMs(double nanos) {
+            return nanos * 1000 / NANOS_PER_SEC;
+        }
+
+        // Collects the completed sizes into a result for the reporters
+        private void processResults() {
+
+            // A second experiment in the same test is saved apart from the first
+            Baseline base = baseline;
+            String key = ctx.experiments.isEmpty() ? ctx.currentFunc
+                    : ctx.currentFunc + "#" + (ctx.experiments.size() + 1);
+
+            List<SizeResult> results = new ArrayList<>(completed);
+            for (int exp_size = 0; exp_size < completed; exp_size++) {
+
+                double average = averages[exp_size];
+                double ratio = exp_size != 0 && averages[exp_size - 1] != 0 ? average / averages[exp_size - 1] : 0;
+                Stats stat = stats[exp_size];
+                Baseline.Entry saved = base != null ? base.compare(key, sizes[exp_size], stat) : null;
+                results.add(new SizeResult(sizes[exp_size], average, ratio, warmups[exp_size], batches[exp_size],
+                        allocationCounter != null ? bytesPerOp[exp_size] : Double.NaN, toMs(stat.median),
+                        toMs(stat.min), toMs(stat.p90), toMs(stat.p99), toMs(stat.p999), toMs(stat.max),
+                        toMs(stat.stdDev), stat.cv, stat.outliers,
+                        stat.trials, saved != null ? saved.meanMs : Double.NaN,
+                        saved != null && saved.regressed(toMs(stat.mean), toMs(stat.stdDev),
+                                stat.trials - stat.outliers, base.threshold)));
+            }
+
+            fit = ComplexityFit.fit(sizes, averages, completed);
+            if (allocationCounter != null && allocates())
+                memoryFit = ComplexityFit.fit(sizes, bytesPerOp, completed);
+
+            result = new ExperimentResult(ctx.currentFunc, numTrials, config.isAdaptive() ? config.timeBudgetMs : 0,
+                    results, fit, memoryFit);
+            ctx.record(ctx.experiments, result);
+        }
+
+    }
+
+    // Runs several operations on one input per size, taking turns within every trial so they share whatever
+    // else the machine is doing. The order rotates each trial, so no operation always runs first. Everything
+    // runs on the test's thread, as workers running side by side would slow each other down
+    private static final class Comparison<E> {
+
+        // Two sided 95% quantile of the normal distribution
+        private static final double Z = 1.96;
+
+        private final ExperimentConfig config;
+        private final Function<Integer, E> supplier;
+        private final List<String> names;
+        private final List<BiConsumer<Integer, E>> operations;
+
+        Comparison(ExperimentConfig config, Function<Integer, E> supplier,
+                Map<String, BiConsumer<Integer, E>> operations) {
+            this.config = config;
+            this.supplier = supplier;
+            names = new ArrayList<>(operations.keySet());
+            this.operations = new ArrayList<>(operations.values());
+            if (names.contains(null) || this.operations.contains(null))
+                throw new IllegalArgumentException("Operations and their names must not be null!");
+        }
+
+        ComparisonResult run(String test) {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!bean.isCurrentThreadCpuTimeSupported()) {
+                throw new UnsupportedOperationException();
+            }
+
+            int count = operations.size();
+            List<Speedup> speedups = new ArrayList<>();
+            int[] batches = null;
+            for (int size : config.sizes) {
+                Integer boxed = size; // Boxed once, so calling the operations doesn't allocate
+                E input = supplier.apply(boxed);
+                warmUp(bean, boxed, input);
+
+                // Calibrated once, on the first size, so an operation is timed in batches of the same size
+                // at every size
+                if (batches == null) {
+                    batches = new int[count];
+                    for (int op = 0; op < count; op++) {
+                        batches[op] = config.batch == Experiment.AUTO_BATCH
+                                ? Experiment.calibrateBatch(bean, operations.get(op), boxed, input)
+                                : Math.max(config.batch, 1);
+                    }
+                }
+
+                long[][] samples = new long[count][config.numTrials];
+                for (int trial = 0; trial < config.numTrials; trial++) {
+                    for (int turn = 0; turn < count; turn++) {
+                        int op = (trial + turn) % count;
+                        samples[op][trial] = time(bean, operations.get(op), batches[op], boxed, input);
+                    }
+                }
+
+                Stats baseline = Stats.of(samples[0]).per(batches[0]);
+                for (int op = 0; op < count; op++) {
+                    Stats stat = op == 0 ? baseline : Stats.of(samples[op]).per(batches[op]);
+                    speedups.add(speedup(names.get(op), size, batches[op], baseline, stat, op == 0));
+                }
+            }
+            return new ComparisonResult(test, config.numTrials, names.get(0), speedups);
+        }
+
+        private static <E> long time(ThreadMXBean bean, BiConsumer<Integer, E> operation, int batch, Integer size,
+                E input) {
+            long start = bean.getCurrentThreadCpuTime();
+            for (int call = 0; call < batch; call++) {
+                operation.accept(size, input);
+            }
+            return Math.max(Math.subtractExact(bean.getCurrentThreadCpuTime(), start) - Experiment.timerOverhead, 0);
+        }
+
+        // Warms up every operation in turn, either for a fixed number of runs or until each one's time per
+        // round is steady
+        private void warmUp(ThreadMXBean bean, Integer size, E input) {
+            int count = operations.size();
+            if (config.warmupIterations >= 0) {
+                for (int run = 0; run < config.warmupIterations; run++) {
+                    for (BiConsumer<Integer, E> operation : operations) {
+                        operation.accept(size, input);
+                    }
+                }
+                return;
+            }
+
+            int round = Math.max(1, config.numTrials / 10);
+            long[] previous = new long[count];
+            Arrays.fill(previous, -1);
+            int steadyRounds = 0;
+            for (int runs = round; steadyRounds < Experiment.STEADY_BATCHES && runs <= config.maxWarmup;
+                    runs += round) {
+                boolean steady = true;
+                for (int op = 0; op < count; op++) {
+                    long time = time(bean, operations.get(op), round, size, input);
+                    steady &= previous[op] >= 0
+                            && Math.abs(time - previous[op]) <= config.steadyTolerance * previous[op];
+                    previous[op] = time;
+                }
+                steadyRounds = steady ? steadyRounds + 1 : 0;
+            }
+        }
+
+        // The ratio of means, with an interval from the relative standard errors of both (the delta method on
+        // the log of the ratio). Operations that ran too fast to register any time get NaN
+        private static Speedup speedup(String name, int size, int batch, Stats baseline, Stats stat,
+                boolean isBaseline) {
+            double speedup = 1, low = 1, high = 1;
+            if (!isBaseline) {
+                if (baseline.mean > 0 && stat.mean > 0) {
+                    double error = Math.sqrt(relativeVariance(baseline) + relativeVariance(stat));
+                    speedup = baseline.mean / stat.mean;
+                    low = speedup * Math.exp(-Z * error);
+                    high = speedup * Math.exp(Z * error);
+                } else {
+                    speedup = low = high = Double.NaN;
+                }
+            }
+            return new Speedup(name, size, Experiment.toMs(stat.mean), Experiment.toMs(stat.stdDev), batch,
+                    speedup, low, high, low > 1 || high < 1);
+        }
+
+        // Squared standard error of the mean relative to the mean
+        private static double relativeVariance(Stats stat) {
+            int kept = Math.max(stat.trials - stat.outliers, 1);
+            return stat.cv * stat.cv / kept;
+        }
+    }
+
+    // Splits a fixed number of calls between more and more threads sharing one input. Threads are started
+    // and parked before the clock starts, so only the calls themselves are timed. The operation is warmed up on
+    // one thread until its round times are steady, as Experiment does, and then once at every other thread
+    // count. Thread counts are then timed in turns, starting from a different one each round, so drift in the
+    // JIT or the machine doesn't favor one of them. The median of each count's rounds is kept
+    private static final class Scaling<E> {
+
+        private static final int ROUNDS = 5;
+        // How close a warmup round must be to the one before to count as steady
+        private static final double STEADY_TOLERANCE = 0.05;
+        private static final int MAX_WARMUP_ROUNDS = 20;
+
+        private final int operations;
+        private final int size;
+        private final int maxThreads;
+        private final Function<Integer, E> supplier;
+        private final BiConsumer<Integer, E> operation;
+
+        // CPU time of every thread that has finished a round
+        private final LongAdder threadCpu = new LongAdder();
+
+        Scaling(int operations, int size, int maxThreads, Function<Integer, E> supplier,
+                BiConsumer<Integer, E> operation) {
+            this.operations = operations;
+            this.size = size;
+            this.maxThreads = maxThreads;
+            this.supplier = supplier;
+            this.operation = operation;
+        }
+
+        ScalingResult run(TestContext ctx) {
+            List<Integer> counts = new ArrayList<>();
+            for (int threads = 1; threads < maxThreads; threads *= 2) {
+                counts.add(threads);
+            }
+            counts.add(maxThreads);
+
+            List<ThreadsResult> results = new ArrayList<>();
+            try {
+                warmUp(ctx, counts);
+                long[][] times = new long[counts.size()][ROUNDS];
+                for (int round = 0; round < ROUNDS; round++) {
+                    for (int turn = 0; turn < counts.size(); turn++) {
+                        int count = (round + turn) % counts.size();
+                        times[count][round] = round(ctx, counts.get(count));
+                    }
+                }
+
+                double single = Experiment.toMs(Stats.of(times[0]).median);
+                for (int count = 0; count < counts.size(); count++) {
+                    int threads = counts.get(count);
+                    double wallMs = Experiment.toMs(Stats.of(times[count]).median);
+                    double speedup = wallMs > 0 ? single / wallMs : Double.NaN;
+                    results.add(new ThreadsResult(threads, wallMs, wallMs > 0 ? operations / wallMs : Double.NaN,
+                            speedup, speedup / threads));
+                }
+            } finally {
+                ctx.cpuNanos.add(threadCpu.sum());
+            }
+            return new ScalingResult(ctx.currentFunc, size, operations, results, serialFraction(results));
+        }
+
+        // Runs single threaded rounds until Experiment.STEADY_BATCHES of them in a row are within
+        // STEADY_TOLERANCE of the one before, then one round at every other thread count, so paths only taken
+        // under contention are compiled too
+        private void warmUp(TestContext ctx, List<Integer> counts) {
+            long previous = -1;
+            int steadyRounds = 0;
+            for (int round = 0; steadyRounds < Experiment.STEADY_BATCHES && round < MAX_WARMUP_ROUNDS; round++) {
+                long time = round(ctx, 1);
+                steadyRounds = previous >= 0 && Math.abs(time - previous) <= STEADY_TOLERANCE * previous
+                        ? steadyRounds + 1 : 0;
+                previous = time;
+            }
+            for (int threads : counts.subList(1, counts.size())) {
+                round(ctx, threads);
+            }
+        }
+
+        // Wall clock nanoseconds for all threads to make their share of the calls. What the operation throws is
+        // rethrown here
+        private long round(TestContext ctx, int threads) {
+            E input = supplier.apply(size);
+            Integer boxed = size; // Boxed once, so calling the operation doesn't allocate
+            CountDownLatch ready = new CountDownLatch(threads);
+            CountDownLatch go = new CountDownLatch(1);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+
+            List<Thread> workers = new ArrayList<>(threads);
+            for (int thread = 0; thread < threads; thread++) {
+                int calls = operations / threads + (thread < operations % threads ? 1 : 0);
+                Thread worker = new Thread(() -> {
+                    context.set(ctx);
+                    try {
+                        ready.countDown();
+                        go.await();
+                        for (int call = 0; call < calls; call++) {
+                            operation.accept(boxed, input);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        threadCpu.add(cpuTime());
+                    }
+                }, "scaling-" + thread);
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+
+            awaitUninterruptibly(ready);
+            long start = System.nanoTime();
+            go.countDown();
+            for (Thread worker : workers) {
+                joinUninterruptibly(worker);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            // Checked exceptions thrown sneakily by the operation are rethrown too, rather than lost
+            Throwable thrown = failure.get();
+            if (thrown != null)
+                Test.<RuntimeException>rethrow(thrown);
+            return elapsed;
+        }
+
+        // Amdahl's law gives 1 / speedup - 1 / n = s * (1 - 1 / n), a line through the origin. Least squares
+        // over every count past one thread, clamped to [0, 1]
+        private static double serialFraction(List<ThreadsResult> results) {
+            double xy = 0;
+            double xx = 0;
+            for (ThreadsResult result : results) {
+                if (result.threads == 1 || !(result.speedup > 0))
+                    continue;
+                double x = 1 - 1.0 / result.threads;
+                double y = 1 / result.speedup - 1.0 / result.threads;
+                xy += x * y;
+                xx += x * x;
+            }
+            return xx > 0 ? Math.min(Math.max(xy / xx, 0), 1) : Double.NaN;
+        }
+
+        private static void awaitUninterruptibly(CountDownLatch latch) {
+            while (true) {
+                try {
+                    latch.await();
+                    return;
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+
+        private static void joinUninterruptibly(Thread thread) {
+            while (true) {
+                try {
+                    thread.join();
+                    return;
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    // Summary of the trial times at one size, in nanoseconds. Order statistics use every trial. The mean and
+    // spread leave out trials past Tukey's far out fences (3 IQR beyond the quartiles), unless the quartiles
+    // are equal, which happens when most trials hit the same clock tick
+    private static final class Stats {
+
+        static final double FENCE = 3;
+
+        final int trials;
+        final int outliers;
+        final double mean;
+        final double median;
+        final double min;
+        final double p90;
+        final double p99;
+        final double p999;
+        final double max;
+        final double stdDev;
+        final double cv;
+
+        private Stats(int trials, int outliers, double mean, double stdDev, double median, double min, double p90,
+                double p99, double p999, double max) {
+            this.trials = trials;
+            this.outliers = outliers;
+            this.mean = mean;
+            this.stdDev = stdDev;
+            cv = mean > 0 ? stdDev / mean : 0;
+            this.median = median;
+            this.min = min;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        // The same summary for one call, when each trial timed 'calls' calls together
+        Stats per(int calls) {
+            if (calls <= 1)
+                return this;
+            return new Stats(trials, outliers, mean / calls, stdDev / calls, median / calls, min / calls, p90 / calls,
+                    p99 / calls, p999 / calls, max / calls);
+        }
+
+        static Stats of(long[] samples) {
+            long[] sorted = samples.clone();
+            Arrays.sort(sorted);
+
+            double q1 = percentile(sorted, 0.25);
+            double q3 = percentile(sorted, 0.75);
+            double iqr = q3 - q1;
+            double low = iqr > 0 ? q1 - FENCE * iqr : Double.NEGATIVE_INFINITY;
+            double high = iqr > 0 ? q3 + FENCE * iqr : Double.POSITIVE_INFINITY;
+
+            int kept = 0;
+            double sum = 0;
+            for (long sample : sorted) {
+                if (sample >= low && sample <= high) {
+                    sum += sample;
+                    kept++;
+                }
+            }
+            double mean = kept > 0 ? sum / kept : 0;
+
+            double squares = 0;
+            for (long sample : sorted) {
+                if (sample >= low && sample <= high)
+                    squares += (sample - mean) * (sample - mean);
+            }
+            double stdDev = kept > 1 ? Math.sqrt(squares / (kept - 1)) : 0;
+
+            return new Stats(sorted.length, sorted.length - kept, mean, stdDev, percentile(sorted, 0.5),
+                    sorted.length > 0 ? sorted[0] : 0, percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    percentile(sorted, 0.999), sorted.length > 0 ? sorted[sorted.length - 1] : 0);
+        }
+
+        // The same summary from counts, taking each bucket's middle as the time of everything in it
+        static Stats of(Histogram histogram) {
+            double q1 = histogram.percentile(0.25);
+            double q3 = histogram.percentile(0.75);
+            double iqr = q3 - q1;
+            double low = iqr > 0 ? q1 - FENCE * iqr : Double.NEGATIVE_INFINITY;
+            double high = iqr > 0 ? q3 + FENCE * iqr : Double.POSITIVE_INFINITY;
+
+            long kept = 0;
+            double sum = 0;
+            for (int index = 0; index < Histogram.BUCKETS; index++) {
+                long count = histogram.count(index);
+                double value = histogram.middle(index);
+                if (count > 0 && value >= low && value <= high) {
+                    sum += value * count;
+                    kept += count;
+                }
+            }
+            double mean = kept > 0 ? sum / kept : 0;
+
+            double squares = 0;
+            for (int index = 0; index < Histogram.BUCKETS; index++) {
+                long count = histogram.count(index);
+                double value = histogram.middle(index);
+                if (count > 0 && value >= low && value <= high)
+                    squares += (value - mean) * (value - mean) * count;
+            }
+            double stdDev = kept > 1 ? Math.sqrt(squares / (kept - 1)) : 0;
+
+            int trials = (int) histogram.total();
+            return new Stats(trials, (int) (trials - kept), mean, stdDev, histogram.percentile(0.5), histogram.min(),
+                    histogram.percentile(0.9), histogram.percentile(0.99), histogram.percentile(0.999),
+                    histogram.max());
+        }
+
+        // Nearest rank percentile of a sorted array
+        static double percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0)
+                return 0;
+            int rank = (int) Math.ceil(fraction * sorted.length);
+            return sorted[Math.max(rank - 1, 0)];
+        }
+    }
+
+    // Counts of trial times in buckets that widen with the time, so memory is fixed however many trials are
+    // counted. Times below 128ns get a bucket each. Above that every power of two is split into 64 buckets, so
+    // any time is within 1.6% of its bucket's ends. Recording doesn't allocate, and histograms of the same
+    // times can be added together. Percentiles report the upper end of their bucket, never above the maximum
+    static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 7;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int HALF = SUB_BUCKETS / 2;
+        static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+        private final long[] counts = new long[BUCKETS];
+        private long total;
+        private long min = Long.MAX_VALUE;
+        private long max;
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            counts[index(value)]++;
+            total++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        void add(Histogram other) {
+            for (int index = 0; index < BUCKETS; index++) {
+                counts[index] += other.counts[index];
+            }
+            total += other.total;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        long total() {
+            return total;
+        }
+
+        long count(int index) {
+            return counts[index];
+        }
+
+        long min() {
+            return total > 0 ? min : 0;
+        }
+
+        long max() {
+            return max;
+        }
+
+        // Nearest rank percentile, like Stats.percentile
+        double percentile(double fraction) {
+            if (total == 0)
+                return 0;
+            long rank = Math.max((long) Math.ceil(fraction * total), 1);
+            long seen = 0;
+            for (int index = 0; index < BUCKETS; index++) {
+                seen += counts[index];
+                if (seen >= rank)
+                    return Math.min(highest(index), max);
+            }
+            return max;
+        }
+
+        double middle(int index) {
+            return Math.min(Math.max((lowest(index) + (double) highest(index)) / 2, min()), max);
+        }
+
+        // Values in [128, 256) are shifted by 1, [256, 512) by 2 and so on, leaving 7 bits whose top one is set
+        static int index(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+            return shift * HALF + (int) (value >>> shift);
+        }
+
+        static long lowest(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            int shift = index / HALF - 1;
+            return (long) (index - shift * HALF) << shift;
+        }
+
+        static long highest(int index) {
+            return index + 1 < BUCKETS ? lowest(index + 1) - 1 : Long.MAX_VALUE;
+        }
+    }
+
+    // Experiment times saved between runs, keyed by test name and size. The file is plain text with one
+    // "name<TAB>size<TAB>mean ms<TAB>standard deviation ms<TAB>samples" line per size
+    private static final class Baseline {
+
+        // How many standard errors apart two means must be before a difference is more than noise
+        static final double NOISE_Z = 3;
+
+        static final class Entry {
+            final double meanMs;
+            final double stdDevMs;
+            final int samples;
+
+            Entry(double meanMs, double stdDevMs, int samples) {
+                this.meanMs = meanMs;
+                this.stdDevMs = stdDevMs;
+                this.samples = samples;
+            }
+
+            // Slower by more than the threshold, and by more than the noise in either run could explain
+            boolean regressed(double meanMs, double stdDevMs, int samples, double threshold) {
+                double slowdown = meanMs - this.meanMs;
+                double noise = Math.sqrt(stdDevMs * stdDevMs / Math.max(samples, 1)
+                        + this.stdDevMs * this.stdDevMs / Math.max(this.samples, 1));
+                return slowdown > threshold * this.meanMs && slowdown > NOISE_Z * noise;
+            }
+        }
+
+        final Path path;
+        final double threshold;
+        final boolean update;
+        private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+        private Baseline(Path path, double threshold, boolean update) {
+            this.path = path;
+            this.threshold = threshold;
+            this.update = update;
+        }
+
+        static Baseline load(Path path, double threshold, boolean update) {
+            Baseline baseline = new Baseline(path, threshold, update);
+            if (!Files.exists(path))
+                return baseline;
+
+            try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.isEmpty() || line.startsWith("#"))
+                        continue;
+                    String[] fields = line.split("\t");
+                    if (fields.length != 5)
+                        throw new IllegalArgumentException("Malformed baseline line: " + line);
+                    baseline.entries.put(fields[0] + "\t" + fields[1], new Entry(Double.parseDouble(fields[2]),
+                            Double.parseDouble(fields[3]), Integer.parseInt(fields[4])));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return baseline;
+        }
+
+        // Returns the saved entry to compare against, if any, and records this run's times
+        Entry compare(String name, int size, Stats stat) {
+            Entry current = new Entry(Experiment.toMs(stat.mean), Experiment.toMs(stat.stdDev),
+                    stat.trials - stat.outliers);
+            String key = name + "\t" + size;
+            Entry saved = update ? entries.put(key, current) : entries.putIfAbsent(key, current);
+            return saved;
+        }
+
+        // Written to a temporary file first, so an interrupted run can't lose the baseline
+        void save() {
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                out.write("# name\tsize\tmean_ms\tstddev_ms\tsamples\n");
+                for (Map.Entry<String, Entry> entry : new TreeMap<>(entries).entrySet()) {
+                    Entry e = entry.getValue();
+                    out.write(entry.getKey() + "\t" + e.meanMs + "\t" + e.stdDevMs + "\t" + e.samples + "\n");
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Makes random inputs for ASSERT_FOR_ALL, and smaller versions of an input for shrinking a counterexample
+     */
+    public interface Generator<T> {
+
+        /**
+         * @param random    Source of randomness. Use only this, so inputs can be repeated from a seed
+         * @param size      Grows from 0 to 100 over a run. Larger sizes should give larger inputs
+         * @return  A new input
+         */
+        T generate(Random random, int size);
+
+        /**
+         * Smaller versions of a value, most aggressive first. Only values that still fail are kept, so
+         * generators that can't shrink may return nothing
+         * 
+         * @param value     A value that made the property fail
+         * @return  Candidates, computed lazily where possible
+         */
+        default Iterable<T> shrink(T value) {
+            return Collections.emptyList();
+        }
+
+        /**
+         * Integers between min and max inclusive, shrinking towards 0, or the end of the range nearest 0
+         */
+        static Generator<Integer> integers(int min, int max) {
+            if (min > max)
+                throw new IllegalArgumentException("min must be <= max!");
+            int target = Math.max(min, Math.min(max, 0));
+            return new Generator<Integer>() {
+                @Override
+                public Integer generate(Random random, int size) {
+                    return (int) (min + (long) (random.nextDouble() * ((long) max - min + 1)));
+                }
+
+                @Override
+                public Iterable<Integer> shrink(Integer value) {
+                    List<Integer> smaller = new ArrayList<>();
+                    long distance = (long) value - target;
+                    for (long step = distance; step != 0; step /= 2) {
+                        smaller.add((int) (value - step));
+                    }
+                    return smaller;
+                }
+            };
+        }
+
+        /**
+         * Lists of up to max_length elements. Longer lists are made as the size grows. Lists shrink by
+         * removing runs of elements, then by shrinking single elements
+         */
+        static <T> Generator<List<T>> lists(Generator<T> elements, int max_length) {
+            if (elements == null || max_length < 0)
+                throw new IllegalArgumentException("Elements must not be null and max_length must be >= 0!");
+            return new Generator<List<T>>() {
+                @Override
+                public List<T> generate(Random random, int size) {
+                    int length = random.nextInt((int) ((long) max_length * size / PropertyCheck.MAX_SIZE) + 1);
+                    List<T> list = new ArrayList<>(length);
+                    for (int i = 0; i < length; i++) {
+                        list.add(elements.generate(random, size));
+                    }
+                    return list;
+                }
+
+                @Override
+                public Iterable<List<T>> shrink(List<T> value) {
+                    int length = value.size();
+                    Stream<List<T>> removed = IntStream.iterate(length, run -> run > 0, run -> run / 2)
+                            .boxed()
+                            .flatMap(run -> IntStream.iterate(0, from -> from + run <= length, from -> from + run)
+                                    .mapToObj(from -> {
+                                        List<T> shorter = new ArrayList<>(value.subList(0, from));
+                                        shorter.addAll(value.subList(from + run, length));
+                                        return shorter;
+                                    }));
+                    Stream<List<T>> shrunk = IntStream.range(0, length).boxed()
+                            .flatMap(index -> stream(elements.shrink(value.get(index))).map(element -> {
+                                List<T> changed = new ArrayList<>(value);
+                                changed.set(index, element);
+                                return changed;
+                            }));
+                    return Stream.concat(removed, shrunk)::iterator;
+                }
+            };
+        }
+
+        private static <T> Stream<T> stream(Iterable<T> iterable) {
+            return StreamSupport.stream(iterable.spliterator(), false);
+        }
+    }
+
+    // Runs a property over generated inputs on a work stealing pool, then shrinks the first failure. Inputs
+    // are generated in fixed chunks, each from its own seed, so they don't depend on how many cores run them.
+    // The failure reported is always the one at the lowest index, for the same reason
+    private static final class PropertyCheck<T> {
+
+        static final int MAX_SIZE = 100;
+        private static final int CHUNK = 64;
+        private static final int MAX_THREADS = 20;
+        private static final int MAX_SHRINK_TRIES = 10_000;
+
+        private final Generator<T> generator;
+        private final Predicate<? super T> property;
+        private final int n;
+        private final long seed;
+        private final TestContext ctx = current();
+
+        int failedIndex = -1;
+        T failed;
+        Throwable thrown;
+        // CPU time of the pool's workers
+        final LongAdder cpuNanos = new LongAdder();
+
+        // Lowest failing index found so far. Every input reads it, so it is lock free. Each chunk stops at
+        // its first failure and keeps it in its own slot until run() picks the lowest
+        private final AtomicInteger lowest = new AtomicInteger(Integer.MAX_VALUE);
+        private final Object[] chunkFailed;
+        private final Throwable[] chunkThrown;
+
+        PropertyCheck(Generator<T> generator, Predicate<? super T> property, int n, long seed) {
+            this.generator = generator;
+            this.property = property;
+            this.n = n;
+            this.seed = seed;
+            chunkFailed = new Object[(n + CHUNK - 1) / CHUNK];
+            chunkThrown = new Throwable[chunkFailed.length];
+        }
+
+        @SuppressWarnings("unchecked")
+        void run() {
+            int chunks = chunkFailed.length;
+            ForkJoinPool pool = new ForkJoinPool(Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS));
+            try {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>(chunks);
+                for (int chunk = 0; chunk < chunks; chunk++) {
+                    int chunk_f = chunk;
+                    tasks.add(pool.submit(() -> runChunk(chunk_f)));
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+            } finally {
+                pool.shutdown();
+            }
+            int index = lowest.get();
+            if (index != Integer.MAX_VALUE) {
+                failedIndex = index;
+                failed = (T) chunkFailed[index / CHUNK];
+                thrown = chunkThrown[index / CHUNK];
+            }
+        }
+
+        private void runChunk(int chunk) {
+            long cpuStart = cpuTime();
+            TestContext previous = context.get();
+            context.set(ctx);
+            try {
+                Random random = new Random(mix(seed + chunk * 0x9E3779B97F4A7C15L));
+                for (int index = chunk * CHUNK; index < Math.min((chunk + 1) * CHUNK, n); index++) {
+                    // A failure was already found earlier on
+                    if (lowest.get() < index)
+                        return;
+                    T value = generator.generate(random, (int) ((long) index * MAX_SIZE / Math.max(n - 1, 1)));
+                    Throwable error = test(value);
+                    if (error != null) {
+                        found(index, value, error == RETURNED_FALSE ? null : error);
+                        return;
+                    }
+                }
+            } finally {
+                context.set(previous);
+                cpuNanos.add(cpuTime() - cpuStart);
+            }
+        }
+
+        private void found(int index, T value, Throwable error) {
+            chunkFailed[index / CHUNK] = value;
+            chunkThrown[index / CHUNK] = error;
+            int current = lowest.get();
+            while (index < current && !lowest.compareAndSet(current, index)) {
+                current = lowest.get();
+            }
+        }
+
+        // What test() returns for a property that returned false rather than threw
+        private static final Throwable RETURNED_FALSE = new Throwable("false", null, false, false) {
+            private static final long serialVersionUID = 1L;
+        };
+
+        // Returns null if the property holds, otherwise what it threw or RETURNED_FALSE
+        private Throwable test(T value) {
+            try {
+                return property.test(value) ? null : RETURNED_FALSE;
+            } catch (RuntimeException | AssertionError e) {
+                return e;
+            }
+        }
+
+        // Greedily replaces the counterexample with the first smaller value that still fails. Returns how
+        // many times it was replaced
+        int shrink() {
+            int steps = 0;
+            int tries = 0;
+            boolean smaller = true;
+            while (smaller && tries < MAX_SHRINK_TRIES) {
+                smaller = false;
+                for (T candidate : generator.shrink(failed)) {
+                    if (++tries > MAX_SHRINK_TRIES)
+                        break;
+                    Throwable error = test(candidate);
+                    if (error != null) {
+                        failed = candidate;
+                        thrown = error == RETURNED_FALSE ? null : error;
+                        steps++;
+                        smaller = true;
+                        break;
+                    }
+                }
+            }
+            return steps;
+        }
+
+        // SplitMix64's finalizer, so neighbouring chunks get unrelated seeds
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * Growth classes that experiment times are fitted against, from slowest to fastest growing
+     */
+    public enum Complexity {
+        CONSTANT("O(1)", 0), LOGARITHMIC("O(log n)", 0), LINEAR("O(n)", 1), LINEARITHMIC("O(n log n)", 1),
+        QUADRATIC("O(n^2)", 2);
+
+        private final String notation;
+        private final double exponent;
+
+        Complexity(String notation, double exponent) {
+            this.notation = notation;
+            this.exponent = exponent;
+        }
+
+        double apply(double n) {
+            double log = Math.log(Math.max(n, 2));
+            switch (this) {
+            case CONSTANT:
+                return 1;
+            case LOGARITHMIC:
+                return log;
+            case LINEAR:
+                return n;
+            case LINEARITHMIC:
+                return n * log;
+            default:
+                return n * n;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return notation;
+        }
+    }
+
+    /**
+     * Fits (size, time) points against each Complexity as time = c * f(n), and against a power law
+     * time = c * n^k. Classes are compared by relative error so small sizes count as much as large ones
+     */
+    public static final class ComplexityFit implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        static final int MIN_POINTS = 3;
+
+        // How far the power law exponent may exceed a bound's nominal exponent before the bound fails
+        static final double EXPONENT_SLACK = 0.5;
+
+        /** The best fitting class */
+        public final Complexity best;
+        /** Exponent k of the power law fit */
+        public final double exponent;
+        /** Goodness of fit of the best class */
+        public final double rSquared;
+        /** Root mean square relative error of the best class */
+        public final double relativeError;
+
+        private ComplexityFit(Complexity best, double exponent, double rSquared, double relativeError) {
+            this.best = best;
+            this.exponent = exponent;
+            this.rSquared = rSquared;
+            this.relativeError = relativeError;
+        }
+
+        // Returns null when there are too few points to tell classes apart
+        static ComplexityFit fit(int[] sizes, double[] values, int count) {
+            if (count < MIN_POINTS)
+                return null;
+
+            // Relative errors need positive values. Times below the clock resolution are raised to the
+            // smallest measured value
+            double floor = Double.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                if (values[i] > 0)
+                    floor = Math.min(floor, values[i]);
+            }
+            if (floor == Double.MAX_VALUE)
+                floor = 1;
+            double[] times = new double[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = Math.max(values[i], floor);
+            }
+
+            Complexity best = null;
+            double bestError = Double.MAX_VALUE;
+            double bestScale = 0;
+            for (Complexity model : Complexity.values()) {
+
+                // Least squares on relative error: minimize sum(((c * f - t) / t)^2)
+                double numerator = 0;
+                double denominator = 0;
+                for (int i = 0; i < count; i++) {
+                    double ratio = model.apply(sizes[i]) / times[i];
+                    numerator += ratio;
+                    denominator += ratio * ratio;
+                }
+                double scale = numerator / denominator;
+
+                double error = 0;
+                for (int i = 0; i < count; i++) {
+                    double relative = (scale * model.apply(sizes[i]) - times[i]) / times[i];
+                    error += relative * relative;
+                }
+                error = Math.sqrt(error / count);
+                if (error < bestError) {
+                    best = model;
+                    bestError = error;
+                    bestScale = scale;
+                }
+            }
+
+            // R^2 of the chosen model in the original units
+            double mean = 0;
+            for (int i = 0; i < count; i++) {
+                mean += times[i] / count;
+            }
+            double residual = 0;
+            double total = 0;
+            for (int i = 0; i < count; i++) {
+                double predicted = bestScale * best.apply(sizes[i]);
+                residual += (times[i] - predicted) * (times[i] - predicted);
+                total += (times[i] - mean) * (times[i] - mean);
+            }
+            double rSquared = total > 0 ? 1 - residual / total : 1;
+
+            return new ComplexityFit(best, powerLawExponent(sizes, times, count), rSquared, bestError);
+        }
+
+        // Slope of log(time) against log(size)
+        private static double powerLawExponent(int[] sizes, double[] times, int count) {
+            double meanX = 0;
+            double meanY = 0;
+            for (int i = 0; i < count; i++) {
+                meanX += Math.log(sizes[i]) / count;
+                meanY += Math.log(times[i]) / count;
+            }
+            double covariance = 0;
+            double variance = 0;
+            for (int i = 0; i < count; i++) {
+                double x = Math.log(sizes[i]) - meanX;
+                covariance += x * (Math.log(times[i]) - meanY);
+                variance += x * x;
+            }
+            return variance > 0 ? covariance / variance : 0;
+        }
+
+        // Worse than bound only if the power law clearly outgrows it. The best class alone isn't enough, as
+        // neighbours like O(n) and O(n log n) differ by less than timing noise over the usual range of sizes
+        boolean exceeds(Complexity bound) {
+            return exponent > bound.exponent + EXPONENT_SLACK;
+        }
+
+        // The bound exceeds() checks in place of the given one. O(log n) and O(n log n) grow too close to O(1)
+        // and O(n) for timing to tell them apart, so a check against them is the same as one against the class
+        // below, which is returned instead
+        static Complexity checked(Complexity bound) {
+            for (Complexity below : Complexity.values()) {
+                if (below.exponent == bound.exponent)
+                    return below;
+            }
+            return bound;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (exponent %.2f, R^2 %.3f, error %.1f%%)", best, exponent, rSquared,
+                    relativeError * 100);
+        }
+    }
+
+    /**
+     * Prototype. Runs a big O experiment like TIME_EXPERIMENT and fails if the operation grows faster than
+     * the given bound: when the fitted power law exponent is more than 0.5 above the bound's (0 for O(1),
+     * 1 for O(n), 2 for O(n^2)). O(log n) and O(n log n) can't be told apart from O(1) and O(n) by timing,
+     * so they aren't accepted as bounds
+     * 
+     * @param bound         The worst acceptable growth class: CONSTANT, LINEAR or QUADRATIC
+     * @param config        Number of trials and the sizes to run them at, at least 3 sizes
+     * @param supplier      A function that accepts a size and returns a parameter that will be fed into the operation function
+     * @param operation     The operation to time. Accepts a generic <E> input parameter from the output of supplier
+     * @param message       A descriptive message to be printed if the test fails
+     */
+    public static <E> void ASSERT_COMPLEXITY_AT_MOST_MESSAGE(Complexity bound, ExperimentConfig config,
+            Function<Integer, E> supplier, BiConsumer<Integer, E> operation, String message) {
+        if (bound == null || config == null || supplier == null || operation == null)
+            throw new IllegalArgumentException("Experiment arguments must not be null!");
+        Complexity checked = ComplexityFit.checked(bound);
+        if (checked != bound)
+            throw new IllegalArgumentException(String.format("%s can't be told apart from %s by timing, bound by "
+                    + "Complexity.%s instead!", bound, checked, checked.name()));
+        Experiment<E> exp = new Experiment<>(config, supplier, operation);
+        wrapExperiment(exp);
+        current().assertion();
+
+        if (exp.fit == null) {
+            handleFailedTest(bound, "too few sizes", message);
+        } else if (exp.fit.exceeds(bound)) {
+            handleFailedTest(bound, exp.fit, message);
+        }
+    }
+
+    /**
+     * Prototype. Runs a big O experiment like TIME_EXPERIMENT and fails if the operation grows faster than
+     * the given bound: when the fitted power law exponent is more than 0.5 above the bound's (0 for O(1),
+     * 1 for O(n), 2 for O(n^2)). O(log n) and O(n log n) can't be told apart from O(1) and O(n) by timing,
+     * so they aren't accepted as bounds
+     * 
+     * @param bound         The worst acceptable growth class: CONSTANT, LINEAR or QUADRATIC
+     * @param config        Number of trials and the sizes to run them at, at least 3 sizes
+     * @param supplier      A function that accepts a size and returns a parameter that will be fed into the operation function
+     * @param operation     The operation to time. Accepts a generic <E> input parameter from the output of supplier
+     */
+    public static <E> void ASSERT_COMPLEXITY_AT_MOST(Complexity bound, ExperimentConfig config,
+            Function<Integer, E> supplier, BiConsumer<Integer, E> operation) {
+        ASSERT_COMPLEXITY_AT_MOST_MESSAGE(bound, config, supplier, operation, null);
+    }
+
+    /**
+     * Prototype. Runs a big O experiment like TIME_EXPERIMENT and fails for every size that got slower than
+     * the baseline set with SET_BASELINE. Sizes with no saved time pass and are saved
+     * 
+     * @param config        Number of trials and the sizes to run them at. See ExperimentConfig.builder()
+     * @param supplier      A function that accepts a size and returns a parameter that will be fed into the operation function
+     * @param operation     The operation to time. Accepts a generic <E> input parameter from the output of supplier
+     * @param message       Message to display on failure
+     */
+    public static <E> void ASSERT_NO_REGRESSION_MESSAGE(ExperimentConfig config, Function<Integer, E> supplier,
+            BiConsumer<Integer, E> operation, String message) {
+        if (config == null || supplier == null || operation == null)
+            throw new IllegalArgumentException("Experiment arguments must not be null!");
+        Baseline base = baseline;
+        if (base == null)
+            throw new IllegalStateException("No baseline to compare against, call SET_BASELINE before BEGIN");
+        Experiment<E> exp = new Experiment<>(config, supplier, operation);
+        wrapExperiment(exp);
+        current().assertion();
+
+        for (SizeResult size : exp.result.sizes) {
+            if (size.regressed) {
+                handleFailedTest(String.format("at most %fms at size %d", size.baselineMs * (1 + base.threshold),
+                        size.size), String.format("%fms (%+.1f%%)", size.meanMs,
+                        (size.meanMs / size.baselineMs - 1) * 100), message);
+            }
+        }
+    }
+
+    /**
+     * Prototype. Runs a big O experiment like TIME_EXPERIMENT and fails for every size that got slower than
+     * the baseline set with SET_BASELINE. Sizes with no saved time pass and are saved
+     * 
+     * @param config        Number of trials and the sizes to run them at. See ExperimentConfig.builder()
+     * @param supplier      A function that accepts a size and returns a parameter that will be fed into the operation function
+     * @param operation     The operation to time. Accepts a generic <E> input parameter from the output of supplier
+     */
+    public static <E> void ASSERT_NO_REGRESSION(ExperimentConfig config, Function<Integer, E> supplier,
+            BiConsumer<Integer, E> operation) {
+        ASSERT_NO_REGRESSION_MESSAGE(config, supplier, operation, null);
+    }
+
+    /**
+     * Check a property against n generated inputs, spread across the cores. A failing input is shrunk to a
+     * small counterexample before it is reported. Inputs are drawn from a random seed, which is reported on
+     * failure so the run can be repeated with ASSERT_FOR_ALL(generator, property, n, seed)
+     * 
+     * @param generator     Makes inputs and smaller versions of them, see Generator.integers and Generator.lists
+     * @param property      Returns true if the property holds for an input. Throwing counts as not holding
+     * @param n             How many inputs to check, n > 0
+     */
+    public static <T> void ASSERT_FOR_ALL(Generator<T> generator, Predicate<? super T> property, int n) {
+        ASSERT_FOR_ALL_MESSAGE(generator, property, n, null);
+    }
+
+    /**
+     * Check a property against n generated inputs, spread across the cores. A failing input is shrunk to a
+     * small counterexample before it is reported. Inputs are drawn from a random seed, which is reported on
+     * failure so the run can be repeated with ASSERT_FOR_ALL(generator, property, n, seed)
+     * 
+     * @param generator     Makes inputs and smaller versions of them, see Generator.integers and Generator.lists
+     * @param property      Returns true if the property holds for an input. Throwing counts as not holding
+     * @param n             How many inputs to check, n > 0
+     * @param message       A descriptive message to be printed if the test fails
+     */
+    public static <T> void ASSERT_FOR_ALL_MESSAGE(Generator<T> generator, Predicate<? super T> property, int n,
+            String message) {
+        ASSERT_FOR_ALL_MESSAGE(generator, property, n, new Random().nextLong(), message);
+    }
+
+    /**
+     * Check a property against n inputs generated from a seed. The same seed gives the same inputs on any
+     * number of cores
+     * 
+     * @param generator     Makes inputs and smaller versions of them, see Generator.integers and Generator.lists
+     * @param property      Returns true if the property holds for an input. Throwing counts as not holding
+     * @param n             How many inputs to check, n > 0
+     * @param seed          Seed of the inputs
+     */
+    public static <T> void ASSERT_FOR_ALL(Generator<T> generator, Predicate<? super T> property, int n,
+            long seed) {
+        ASSERT_FOR_ALL_MESSAGE(generator, property, n, seed, null);
+    }
+
+    /**
+     * Check a property against n inputs generated from a seed. The same seed gives the same inputs on any
+     * number of cores
+     * 
+     * @param generator     Makes inputs and smaller versions of them, see Generator.integers and Generator.lists
+     * @param property      Returns true if the property holds for an input. Throwing counts as not holding
+     * @param n             How many inputs to check, n > 0
+     * @param seed          Seed of the inputs
+     * @param message       A descriptive message to be printed if the test fails
+     */
+    public static <T> void ASSERT_FOR_ALL_MESSAGE(Generator<T> generator, Predicate<? super T> property, int n,
+            long seed, String message) {
+        if (generator == null || property == null)
+            throw new IllegalArgumentException("Generator and property must not be null!");
+        if (n <= 0)
+            throw new IllegalArgumentException("Number of inputs must be > 0!");
+        initTest();
+
+        PropertyCheck<T> check = new PropertyCheck<>(generator, property, n, seed);
+        check.run();
+        current().cpuNanos.add(check.cpuNanos.sum());
+        if (check.failedIndex < 0)
+            return;
+
+        int steps = check.shrink();
+        handleFailedTest("property to hold", String.format("%s for %s (input %d of %d, shrunk %d times, seed %d)",
+                check.thrown != null ? check.thrown : "false", show(check.failed), check.failedIndex + 1, n,
+                steps, seed), message);
+    }
+
+    private static String show(Object value) {
+        if (value != null && value.getClass().isArray()) {
+            String text = Arrays.deepToString(new Object[] { value });
+            return text.substring(1, text.length() - 1);
+        }
+        return String.valueOf(value);
+    }
+
+    // Wrapper needed to provide correct function name
+    private static <E> void wrapExperiment(Experiment<E> exp) {
+        TestContext ctx = current();
+        if (ctx.currentFunc == null)
+            ctx.currentFunc = resolveCallSite().func;
+        exp.run();
+    }
+
+    private static <E> void wrapComparison(Comparison<E> comparison) {
+        TestContext ctx = current();
+        if (ctx.currentFunc == null)
+            ctx.currentFunc = resolveCallSite().func;
+        ctx.record(ctx.comparisons, comparison.run(ctx.currentFunc));
+    }
+
+    private static <E> void wrapScaling(Scaling<E> scaling) {
+        TestContext ctx = current();
+        if (ctx.currentFunc == null)
+            ctx.currentFunc = resolveCallSite().func;
+        ctx.record(ctx.scalings, scaling.run(ctx));
+    }
+
+    /**
+     * Outcome of one test, as given to reporters
+     */
+    public static final class TestResult implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public enum Status {
+            PASSED, FAILED, EXCEPT, TIMEOUT
+        }
+
+        /** Name of the test function, or null if it was never resolved */
+        public final String name;
+        public final Status status;
+        /** Failed assertion messages */
+        public final List<String> failures;
+        /** What the test threw when status is EXCEPT, otherwise null */
+        public final Exception exception;
+        /** Wall clock time the test ran for */
+        public final double wallMs;
+        /** CPU time of the test's thread and the threads working for it. A timed out test counts its thread up to when it was cancelled */
+        public final double cpuMs;
+        public final int assertions;
+        /** The time limit that was exceeded when status is TIMEOUT, otherwise 0 */
+        public final double timeoutMs;
+        public final List<ExperimentResult> experiments;
+        public final List<ComparisonResult> comparisons;
+        public final List<ScalingResult> scalings;
+
+        TestResult(String name, Status status, List<String> failures, Exception exception, long wallNanos,
+                long cpuNanos, int assertions, double timeoutMs, List<ExperimentResult> experiments,
+                List<ComparisonResult> comparisons, List<ScalingResult> scalings) {
+            this.name = name;
+            this.status = status;
+            this.failures = Collections.unmodifiableList(failures);
+            this.exception = exception;
+            this.wallMs = wallNanos / 1e6;
+            this.cpuMs = cpuNanos / 1e6;
+            this.assertions = assertions;
+            this.timeoutMs = timeoutMs;
+            this.experiments = Collections.unmodifiableList(experiments);
+            this.comparisons = Collections.unmodifiableList(comparisons);
+            this.scalings = Collections.unmodifiableList(scalings);
+        }
+    }
+
+    /**
+     * Everything measured by one TIME_EXPERIMENT or ASSERT_COMPLEXITY_AT_MOST call
+     */
+    public static final class ExperimentResult implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Name of the test that ran the experiment */
+        public final String name;
+        public final int trials;
+        /** Time budget in adaptive mode, otherwise 0 */
+        public final double timeBudgetMs;
+        /** Sizes that were run, smallest first */
+        public final List<SizeResult> sizes;
+        /** Growth of time per operation, or null with too few sizes */
+        public final ComplexityFit fit;
+        /** Growth of bytes allocated per operation, or null when not measured */
+        public final ComplexityFit memoryFit;
+
+        ExperimentResult(String name, int trials, double timeBudgetMs, List<SizeResult> sizes, ComplexityFit fit,
+                ComplexityFit memoryFit) {
+            this.name = name;
+            this.trials = trials;
+            this.timeBudgetMs = timeBudgetMs;
+            this.sizes = Collections.unmodifiableList(sizes);
+            this.fit = fit;
+            this.memoryFit = memoryFit;
+        }
+    }
+
+    /**
+     * Everything measured by one TIME_COMPARE call
+     */
+    public static final class ComparisonResult implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Name of the test that ran the comparison */
+        public final String name;
+        public final int trials;
+        /** The operation the others are compared against */
+        public final String baseline;
+        /** One per operation at each size. Grouped by size, smallest first, operations in the order given */
+        public final List<Speedup> speedups;
+
+        ComparisonResult(String name, int trials, String baseline, List<Speedup> speedups) {
+            this.name = name;
+            this.trials = trials;
+            this.baseline = baseline;
+            this.speedups = Collections.unmodifiableList(speedups);
+        }
+    }
+
+    /**
+     * How one operation compared against the baseline at one size
+     */
+    public static final class Speedup implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public final String operation;
+        public final int size;
+        /** Mean with outliers removed */
+        public final double meanMs;
+        public final double stdDevMs;
+        /** Calls timed together in each trial, 1 unless batched. Times are per call */
+        public final int batch;
+        /** Baseline mean / this mean. Above 1 is faster than the baseline, NaN if either mean is 0 */
+        public final double speedup;
+        /** 95% confidence interval of the speedup */
+        public final double low;
+        public final double high;
+        /** The interval leaves out 1, so the difference is more than noise */
+        public final boolean significant;
+
+        Speedup(String operation, int size, double meanMs, double stdDevMs, int batch, double speedup, double low,
+                double high, boolean significant) {
+            this.operation = operation;
+            this.size = size;
+            this.meanMs = meanMs;
+            this.stdDevMs = stdDevMs;
+            this.batch = batch;
+            this.speedup = speedup;
+            this.low = low;
+            this.high = high;
+            this.significant = significant;
+        }
+    }
+
+    /**
+     * Everything measured by one TIME_SCALING call
+     */
+    public static final class ScalingResult implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Name of the test that ran the scaling experiment */
+        public final String name;
+        public final int size;
+        /** Calls made at every thread count, split between the threads */
+        public final int operations;
+        /** Thread counts that were run, fewest first */
+        public final List<ThreadsResult> threads;
+        /**
+         * Share of the work that doesn't run in parallel, from fitting Amdahl's law speedup = 1 / (s + (1 - s) / n)
+         * to the measured speedups. 0 is perfect scaling. NaN with a single thread count
+         */
+        public final double serialFraction;
+
+        ScalingResult(String name, int size, int operations, List<ThreadsResult> threads, double serialFraction) {
+            this.name = name;
+            this.size = size;
+            this.operations = operations;
+            this.threads = Collections.unmodifiableList(threads);
+            this.serialFraction = serialFraction;
+        }
+    }
+
+    /**
+     * Wall clock throughput at one thread count
+     */
+    public static final class ThreadsResult implements Serializable {
 
-        try {
-            thread.start();
-            thread.join((long) time_ms);
-        } catch (Exception e) {
-            handleFailedTestWithin(time_ms / 2, time_ms / 2, time_ms + 1, message);
+        private static final long serialVersionUID = 1L;
+
+        public final int threads;
+        /** Median wall clock time for all of the calls */
+        public final double wallMs;
+        /** Calls per millisecond, all threads together */
+        public final double throughput;
+        /** Throughput relative to one thread */
+        public final double speedup;
+        /** Speedup / threads, 1 is perfect scaling */
+        public final double efficiency;
+
+        ThreadsResult(int threads, double wallMs, double throughput, double speedup, double efficiency) {
+            this.threads = threads;
+            this.wallMs = wallMs;
+            this.throughput = throughput;
+            this.speedup = speedup;
+            this.efficiency = efficiency;
         }
-        if (thread.isAlive()) {
-            handleFailedTestWithin(time_ms / 2, time_ms / 2, time_ms + 1, message);
+    }
+
+    /**
+     * Measurements at one experiment size. Times are in milliseconds per operation
+     */
+    public static final class SizeResult implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public final int size;
+        /** Mean with outliers removed */
+        public final double meanMs;
+        /** Mean relative to the previous size, 0 for the first */
+        public final double ratio;
+        public final int warmup;
+        /** Calls timed together in each trial, 1 unless batched. Times are per call */
+        public final int batch;
+        /** NaN when the JVM can't count allocations */
+        public final double bytesPerOp;
+        public final double medianMs;
+        public final double minMs;
+        public final double p90Ms;
+        public final double p99Ms;
+        public final double p999Ms;
+        public final double maxMs;
+        public final double stdDevMs;
+        /** Coefficient of variation, 0.05 is 5% */
+        public final double cv;
+        public final int outliers;
+        public final int trials;
+        /** Mean saved by an earlier run, NaN without a baseline */
+        public final double baselineMs;
+        /** Slower than the baseline by more than the threshold and the noise */
+        public final boolean regressed;
+
+        SizeResult(int size, double meanMs, double ratio, int warmup, int batch, double bytesPerOp,
+                double medianMs, double minMs, double p90Ms, double p99Ms, double p999Ms, double maxMs,
+                double stdDevMs, double cv, int outliers, int trials, double baselineMs, boolean regressed) {
+            this.size = size;
+            this.meanMs = meanMs;
+            this.ratio = ratio;
+            this.warmup = warmup;
+            this.batch = batch;
+            this.bytesPerOp = bytesPerOp;
+            this.medianMs = medianMs;
+            this.minMs = minMs;
+            this.p90Ms = p90Ms;
+            this.p99Ms = p99Ms;
+            this.p999Ms = p999Ms;
+            this.maxMs = maxMs;
+            this.stdDevMs = stdDevMs;
+            this.cv = cv;
+            this.outliers = outliers;
+            this.trials = trials;
+            this.baselineMs = baselineMs;
+            this.regressed = regressed;
         }
     }
 
     /**
-    * Prototype. Attempts to run a given function, testing that the function completes within a given time
-    * 
-    * @param time_ms    Maximum time in milliseconds to allow the function to run before triggering a failed test
-    *                   0 < time_ms
-    * @param func       The function to time. func != null
-    * 
-    */
-    public static void ASSERT_WITHIN_TIMEOUT(double time_ms, Runnable r) {
-        ASSERT_WITHIN_TIMEOUT_MESSAGE(time_ms, r, null);
+     * Receives test results. Methods are called from one thread at a time, tests in the order they were given
+     */
+    public interface Reporter {
+
+        /**
+         * @param suite     Name of the file that called BEGIN
+         */
+        default void begin(String suite) {
+        }
+
+        void testFinished(TestResult result);
+
+        /**
+         * Called by END. Flush and close any output
+         */
+        default void end() {
+        }
     }
 
     /**
-     * Prototype. Attempts to run big O experiments on a given operation
-     * 
-     * @param num_trials    How many experiments to run, num_trials > 0
-     * @param initial_size  The initial size of the data set. This is doubled for each subsequent run.
-     *                      This is passed as the input to the supplier function to allow for generation of sample data
-     * 
-     * @param supplier      A function that accepts initial_size and returns a parameter that will be fed into the operation function
-     * 
-     * @param operation     The operation to time. Accepts a generic <E> input parameter from the output of supplier
+     * The default reporter. Prints colored results, writing each test's output in one go
      */
-    public static <E> void TIME_EXPERIMENT(int num_trials, final int initial_size, Function<Integer, E> supplier,
-            BiConsumer<Integer, E> operation) {
-        Experiment<E> exp = new Experiment<>(num_trials, initial_size, supplier, operation);
-        wrapExperiment(exp);
+    public static class ConsoleReporter implements Reporter {
+
+        private static final int SLOWEST = 5;
+
+        private final PrintStream out;
+        private final List<TestResult> results = new ArrayList<>();
+
+        public ConsoleReporter() {
+            this(System.out);
+        }
+
+        public ConsoleReporter(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void begin(String suite) {
+            out.println("\n===== Testing " + suite + " =====\n");
+        }
+
+        @Override
+        public void testFinished(TestResult result) {
+            results.add(result);
+            StringBuilder text = new StringBuilder();
+            for (ExperimentResult experiment : result.experiments) {
+                format(text, experiment);
+            }
+            for (ComparisonResult comparison : result.comparisons) {
+                format(text, comparison);
+            }
+            for (ScalingResult scaling : result.scalings) {
+                format(text, scaling);
+            }
+
+            switch (result.status) {
+            case EXCEPT:
+                text.append(String.format("%-20s", "[" + ANSI_RED + "EXCEPT" + ANSI_RESET + "]"));
+                StackTraceElement[] trace = result.exception.getStackTrace();
+                if (trace.length > 0) {
+                    text.append(String.format("%s:%d", trace[0].getFileName(), trace[0].getLineNumber()));
+                } else {
+                    text.append(result.name);
+                }
+                text.append(String.format(" - %s - %s\n", result.exception.getClass().getName(),
+                        result.exception.getMessage()));
+                for (String failure : result.failures) {
+                    text.append(failure).append('\n');
+                }
+                break;
+            case TIMEOUT:
+                text.append(String.format("%-21s", "[" + ANSI_RED + "TIMEOUT" + ANSI_RESET + "]"));
+                text.append(String.format("%s - Exceeded %.3fms, cancelled after %.3fms\n",
+                        result.name != null ? result.name : "test", result.timeoutMs, result.wallMs));
+                for (String failure : result.failures) {
+                    text.append("\t* ").append(failure).append('\n');
+                }
+                text.append('\n');
+                break;
+            default:
+                boolean passed = result.status == TestResult.Status.PASSED;
+                text.append(String.format("%-20s", passed ? "[" + ANSI_GREEN + "PASSED" + ANSI_RESET + "]"
+                        : "[" + ANSI_RED + "FAILED" + ANSI_RESET + "]"));
+                text.append(result.name).append('\n');
+                for (String failure : result.failures) {
+                    text.append("\t* ").append(failure).append('\n');
+                }
+                if (!passed)
+                    text.append('\n');
+            }
+
+            out.print(text);
+            out.flush();
+        }
+
+        // Summary of the tests with the longest wall time
+        @Override
+        public void end() {
+            if (results.isEmpty())
+                return;
+            List<TestResult> slowest = new ArrayList<>(results);
+            slowest.sort((a, b) -> Double.compare(b.wallMs, a.wallMs));
+
+            StringBuilder text = new StringBuilder("\n===== Slowest tests =====\n\n");
+            for (TestResult result : slowest.subList(0, Math.min(SLOWEST, slowest.size()))) {
+                text.append(String.format("%12.3fms wall %12.3fms CPU %8d assertions  %s\n", result.wallMs,
+                        result.cpuMs, result.assertions, result.name));
+            }
+            long strays = Metrics.INSTANCE.getStrayAssertions();
+            if (strays > 0)
+                text.append(String.format("\n%d assertions were made outside of a running test and counted against "
+                        + "none, failures among them are reported as a test of their own. Assert on the test's own "
+                        + "thread, or from work it times or runs as an experiment\n", strays));
+            out.print(text);
+            out.flush();
+        }
+
+        static void format(StringBuilder text, ExperimentResult experiment) {
+            text.append(String.format("\n== Testing %s ==\n", experiment.name));
+            text.append(String.format("Repetitions: %d\n", experiment.trials));
+            if (experiment.timeBudgetMs > 0)
+                text.append(String.format("Time budget(ms): %.0f, Sizes run: %d\n", experiment.timeBudgetMs,
+                        experiment.sizes.size()));
+
+            for (SizeResult size : experiment.sizes) {
+                text.append(String.format("Size: %d, Time(ms): %f, Ratio: %f, Warmup: %d", size.size, size.meanMs,
+                        size.ratio, size.warmup));
+                if (size.batch > 1)
+                    text.append(String.format(", Batch: %d", size.batch));
+                if (!Double.isNaN(size.bytesPerOp))
+                    text.append(String.format(", Bytes/op: %.1f", size.bytesPerOp));
+                if (!Double.isNaN(size.baselineMs))
+                    text.append(String.format(", Baseline: %f (%+.1f%%)%s", size.baselineMs,
+                            (size.meanMs / size.baselineMs - 1) * 100,
+                            size.regressed ? " REGRESSED" : ""));
+                text.append('\n');
+                text.append(String.format(
+                        "\tMedian: %f, Min: %f, P90: %f, P99: %f, P99.9: %f, Max: %f, StdDev: %f, CV: %.1f%%, "
+                                + "Outliers: %d of %d\n",
+                        size.medianMs, size.minMs, size.p90Ms, size.p99Ms, size.p999Ms, size.maxMs, size.stdDevMs,
+                        size.cv * 100, size.outliers, size.trials));
+            }
+
+            if (experiment.fit != null) {
+                text.append(String.format("Best fit: %s\n", experiment.fit));
+            } else {
+                text.append(String.format("Best fit: needs at least %d sizes\n", ComplexityFit.MIN_POINTS));
+            }
+            if (experiment.memoryFit != null)
+                text.append(String.format("Memory fit: %s\n", experiment.memoryFit));
+        }
+
+        // Shared with the JUnit reporter, which puts the same text in system-out
+        static void format(StringBuilder text, ScalingResult scaling) {
+            text.append(String.format("\n== Scaling %s ==\n", scaling.name));
+            text.append(String.format("Size: %d, Operations: %d\n", scaling.size, scaling.operations));
+            for (ThreadsResult threads : scaling.threads) {
+                text.append(String.format(
+                        "Threads: %d, Time(ms): %f, Throughput(ops/ms): %.1f, Speedup: %.2fx, Efficiency: %.1f%%\n",
+                        threads.threads, threads.wallMs, threads.throughput, threads.speedup,
+                        threads.efficiency * 100));
+            }
+            if (Double.isNaN(scaling.serialFraction)) {
+                text.append("Amdahl fit: needs at least 2 thread counts\n");
+            } else if (scaling.serialFraction > 0) {
+                text.append(String.format("Amdahl fit: serial fraction %.3f (speedup limit %.1fx)\n",
+                        scaling.serialFraction, 1 / scaling.serialFraction));
+            } else {
+                text.append("Amdahl fit: serial fraction 0.000 (no limit found)\n");
+            }
+        }
+
+        static void format(StringBuilder text, ComparisonResult comparison) {
+            text.append(String.format("\n== Comparing %s ==\n", comparison.name));
+            text.append(String.format("Repetitions: %d, Baseline: %s\n", comparison.trials, comparison.baseline));
+
+            int size = -1;
+            for (Speedup speedup : comparison.speedups) {
+                if (speedup.size != size) {
+                    size = speedup.size;
+                    text.append(String.format("Size: %d\n", size));
+                }
+                text.append(String.format("\t%s: Time(ms): %f, StdDev: %f", speedup.operation, speedup.meanMs,
+                        speedup.stdDevMs));
+                if (speedup.batch > 1)
+                    text.append(String.format(", Batch: %d", speedup.batch));
+                if (speedup.operation.equals(comparison.baseline)) {
+                    text.append(" (baseline)\n");
+                } else if (Double.isNaN(speedup.speedup)) {
+                    text.append(", Speedup: too fast to time\n");
+                } else {
+                    text.append(String.format(", Speedup: %.2fx (95%% CI %.2fx - %.2fx) %s\n", speedup.speedup,
+                            speedup.low, speedup.high, !speedup.significant ? "no significant difference"
+                                    : speedup.speedup > 1 ? "faster" : "slower"));
+                }
+            }
+        }
     }
 
-    private static class Experiment<E> {
+    /**
+     * Writes one JSON object per line: a "begin" event, an "experiment", "comparison" or "scaling" event for
+     * each of those followed by a "test" event per test, and an "end" event with totals
+     */
+    public static class JsonLinesReporter implements Reporter {
 
-        private static final int NUM_SIZE_STEPS = 5;
-        private static final int MAX_THREADS = 20;
-        private static final int NANOS_PER_SEC = 1_000_000_000;
+        private final AsyncWriter out;
+        private int tests;
+        private int failed;
 
-        private Function<Integer, E> supplier;
-        private BiConsumer<Integer, E> operation;
-        private Thread[] threads;
-        private final int numTrials;
-        private final int initialSize;
+        /**
+         * @param path  File to write. It is replaced if it exists
+         */
+        public JsonLinesReporter(String path) {
+            out = new AsyncWriter(path);
+        }
 
-        double[] averages;
+        @Override
+        public void begin(String suite) {
+            out.write("{\"event\":\"begin\",\"suite\":" + quote(suite) + "}\n");
+        }
 
-        public Experiment(int num_trials, int initial_size, Function<Integer, E> supplier,
-                BiConsumer<Integer, E> operation) {
-            this.supplier = supplier;
-            this.operation = operation;
-            numTrials = num_trials;
-            initialSize = initial_size;
-            threads = new Thread[NUM_SIZE_STEPS];
+        @Override
+        public void testFinished(TestResult result) {
+            for (ExperimentResult experiment : result.experiments) {
+                StringBuilder line = new StringBuilder("{\"event\":\"experiment\",\"test\":")
+                        .append(quote(experiment.name)).append(",\"trials\":").append(experiment.trials)
+                        .append(",\"time_budget_ms\":").append(number(experiment.timeBudgetMs))
+                        .append(",\"sizes\":[");
+                for (int i = 0; i < experiment.sizes.size(); i++) {
+                    SizeResult size = experiment.sizes.get(i);
+                    line.append(i > 0 ? "," : "").append("{\"size\":").append(size.size)
+                            .append(",\"mean_ms\":").append(number(size.meanMs))
+                            .append(",\"ratio\":").append(number(size.ratio))
+                            .append(",\"warmup\":").append(size.warmup)
+                            .append(",\"batch\":").append(size.batch)
+                            .append(",\"bytes_per_op\":").append(number(size.bytesPerOp))
+                            .append(",\"median_ms\":").append(number(size.medianMs))
+                            .append(",\"min_ms\":").append(number(size.minMs))
+                            .append(",\"p90_ms\":").append(number(size.p90Ms))
+                            .append(",\"p99_ms\":").append(number(size.p99Ms))
+                            .append(",\"p999_ms\":").append(number(size.p999Ms))
+                            .append(",\"max_ms\":").append(number(size.maxMs))
+                            .append(",\"stddev_ms\":").append(number(size.stdDevMs))
+                            .append(",\"cv\":").append(number(size.cv))
+                            .append(",\"outliers\":").append(size.outliers)
+                            .append(",\"trials\":").append(size.trials)
+                            .append(",\"baseline_ms\":").append(number(size.baselineMs))
+                            .append(",\"regressed\":").append(size.regressed).append('}');
+                }
+                line.append("],\"fit\":").append(fit(experiment.fit))
+                        .append(",\"memory_fit\":").append(fit(experiment.memoryFit)).append("}\n");
+                out.write(line.toString());
+            }
+            for (ComparisonResult comparison : result.comparisons) {
+                StringBuilder line = new StringBuilder("{\"event\":\"comparison\",\"test\":")
+                        .append(quote(comparison.name)).append(",\"trials\":").append(comparison.trials)
+                        .append(",\"baseline\":").append(quote(comparison.baseline)).append(",\"results\":[");
+                for (int i = 0; i < comparison.speedups.size(); i++) {
+                    Speedup speedup = comparison.speedups.get(i);
+                    line.append(i > 0 ? "," : "").append("{\"operation\":").append(quote(speedup.operation))
+                            .append(",\"size\":").append(speedup.size)
+                            .append(",\"mean_ms\":").append(number(speedup.meanMs))
+                            .append(",\"stddev_ms\":").append(number(speedup.stdDevMs))
+                            .append(",\"batch\":").append(speedup.batch)
+                            .append(",\"speedup\":").append(number(speedup.speedup))
+                            .append(",\"low\":").append(number(speedup.low))
+                            .append(",\"high\":").append(number(speedup.high))
+                            .append(",\"significant\":").append(speedup.significant).append('}');
+                }
+                out.write(line.append("]}\n").toString());
+            }
+            for (ScalingResult scaling : result.scalings) {
+                StringBuilder line = new StringBuilder("{\"event\":\"scaling\",\"test\":")
+                        .append(quote(scaling.name)).append(",\"size\":").append(scaling.size)
+                        .append(",\"operations\":").append(scaling.operations).append(",\"threads\":[");
+                for (int i = 0; i < scaling.threads.size(); i++) {
+                    ThreadsResult threads = scaling.threads.get(i);
+                    line.append(i > 0 ? "," : "").append("{\"threads\":").append(threads.threads)
+                            .append(",\"wall_ms\":").append(number(threads.wallMs))
+                            .append(",\"throughput\":").append(number(threads.throughput))
+                            .append(",\"speedup\":").append(number(threads.speedup))
+                            .append(",\"efficiency\":").append(number(threads.efficiency)).append('}');
+                }
+                out.write(line.append("],\"serial_fraction\":").append(number(scaling.serialFraction))
+                        .append("}\n").toString());
+            }
+
+            tests++;
+            if (result.status != TestResult.Status.PASSED)
+                failed++;
+
+            StringBuilder line = new StringBuilder("{\"event\":\"test\",\"name\":").append(quote(result.name))
+                    .append(",\"status\":").append(quote(result.status.name()))
+                    .append(",\"wall_ms\":").append(number(result.wallMs))
+                    .append(",\"cpu_ms\":").append(number(result.cpuMs))
+                    .append(",\"assertions\":").append(result.assertions)
+                    .append(",\"failures\":[");
+            for (int i = 0; i < result.failures.size(); i++) {
+                line.append(i > 0 ? "," : "").append(quote(result.failures.get(i)));
+            }
+            line.append("],\"exception\":");
+            if (result.exception != null) {
+                line.append("{\"type\":").append(quote(result.exception.getClass().getName()))
+                        .append(",\"message\":").append(quote(result.exception.getMessage())).append('}');
+            } else {
+                line.append("null");
+            }
+            if (result.status == TestResult.Status.TIMEOUT)
+                line.append(",\"timeout_ms\":").append(number(result.timeoutMs));
+            out.write(line.append("}\n").toString());
         }
 
-        public void run() {
-            averages = new double[NUM_SIZE_STEPS];
-            System.out.printf("\n== Testing %s ==\n", currentFunc);
-            System.out.printf("Repetitions: %d\n", numTrials);
+        @Override
+        public void end() {
+            out.write("{\"event\":\"end\",\"tests\":" + tests + ",\"failed\":" + failed + "}\n");
+            out.close();
+        }
 
-            prepareThreads();
-            startThreads();
-            waitForThreads();
-            processResults();
+        private static String fit(ComplexityFit fit) {
+            if (fit == null)
+                return "null";
+            return "{\"class\":" + quote(fit.best.toString()) + ",\"exponent\":" + number(fit.exponent)
+                    + ",\"r_squared\":" + number(fit.rSquared) + ",\"error\":" + number(fit.relativeError) + "}";
         }
 
-        // Run trials for a given size, return the average time
-        private double runExpOfSize(int size) {
+        private static String number(double value) {
+            return Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value);
+        }
 
-            // Reset total counter and generate input data
-            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
-            long total = 0;
-            E input = supplier.apply(size);
-            if (!bean.isCurrentThreadCpuTimeSupported()) {
-                throw new UnsupportedOperationException();
+        private static String quote(String text) {
+            if (text == null)
+                return "null";
+            StringBuilder quoted = new StringBuilder("\"");
+            for (char c : text.toCharArray()) {
+                switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+            return quoted.append('"').toString();
+        }
+    }
+
+    /**
+     * Writes a JUnit XML report when testing ends. Failed assertions become failures, exceptions and timeouts
+     * become errors, and experiment reports go to each test's system-out
+     */
+    public static class JUnitXmlReporter implements Reporter {
+
+        private final AsyncWriter out;
+        private final List<TestResult> results = new ArrayList<>();
+        private String suite = "Test";
+
+        /**
+         * @param path  File to write. It is replaced if it exists
+         */
+        public JUnitXmlReporter(String path) {
+            out = new AsyncWriter(path);
+        }
+
+        @Override
+        public void begin(String suite) {
+            if (suite != null)
+                this.suite = suite;
+        }
+
+        @Override
+        public void testFinished(TestResult result) {
+            results.add(result);
+        }
+
+        @Override
+        public void end() {
+            int failures = 0;
+            int errors = 0;
+            int assertions = 0;
+            double seconds = 0;
+            for (TestResult result : results) {
+                assertions += result.assertions;
+                if (result.status == TestResult.Status.FAILED)
+                    failures++;
+                if (result.status == TestResult.Status.EXCEPT || result.status == TestResult.Status.TIMEOUT)
+                    errors++;
+                seconds += result.wallMs / 1000;
             }
 
-            // Run num_trials experiments and average the time
-            for (int test = 0; test < numTrials; test++) {
-                long start = bean.getCurrentThreadCpuTime();
-                operation.accept(size, input);
-                total = Math.addExact(total, Math.subtractExact(bean.getCurrentThreadCpuTime(), start));
+            String className = suite.endsWith(".java") ? suite.substring(0, suite.length() - 5) : suite;
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write(String.format(
+                    "<testsuite name=\"%s\" tests=\"%d\" failures=\"%d\" errors=\"%d\" assertions=\"%d\" time=\"%.3f\">\n",
+                    escape(className), results.size(), failures, errors, assertions, seconds));
+
+            for (TestResult result : results) {
+                StringBuilder test = new StringBuilder(String.format(
+                        "  <testcase name=\"%s\" classname=\"%s\" assertions=\"%d\" time=\"%.3f\">\n",
+                        escape(result.name != null ? result.name : "test"), escape(className), result.assertions,
+                        result.wallMs / 1000));
+                if (result.status == TestResult.Status.FAILED) {
+                    test.append(String.format("    <failure message=\"%s\">%s</failure>\n",
+                            escape(result.failures.get(0)), escape(String.join("\n", result.failures))));
+                } else if (result.status == TestResult.Status.EXCEPT) {
+                    test.append(String.format("    <error type=\"%s\" message=\"%s\">%s</error>\n",
+                            escape(result.exception.getClass().getName()), escape(result.exception.getMessage()),
+                            escape(String.join("\n", result.failures))));
+                } else if (result.status == TestResult.Status.TIMEOUT) {
+                    test.append(String.format("    <error type=\"timeout\" message=\"Exceeded %.3fms\"/>\n",
+                            result.timeoutMs));
+                }
+                if (!result.experiments.isEmpty() || !result.comparisons.isEmpty() || !result.scalings.isEmpty()) {
+                    StringBuilder report = new StringBuilder();
+                    for (ExperimentResult experiment : result.experiments) {
+                        ConsoleReporter.format(report, experiment);
+                    }
+                    for (ComparisonResult comparison : result.comparisons) {
+                        ConsoleReporter.format(report, comparison);
+                    }
+                    for (ScalingResult scaling : result.scalings) {
+                        ConsoleReporter.format(report, scaling);
+                    }
+                    test.append("    <system-out>").append(escape(report.toString())).append("</system-out>\n");
+                }
+                out.write(test.append("  </testcase>\n").toString());
             }
-            return (double) total / numTrials * 1000 / NANOS_PER_SEC;
+
+            out.write("</testsuite>\n");
+            out.close();
         }
 
-        private void prepareThreads() {
-            for (int exp_size = 0; exp_size < NUM_SIZE_STEPS; exp_size++) {
-                final int exp_size_f = exp_size;
-                threads[exp_size] = new Thread(() -> {
-                    int size = initialSize * (0x01 << exp_size_f);
-                    averages[exp_size_f] = runExpOfSize(size);
-                });
+        // Escapes markup, and drops the characters XML 1.0 can't hold even as a reference: control characters
+        // other than tab, newline and carriage return, and the noncharacters U+FFFE and U+FFFF
+        private static String escape(String text) {
+            if (text == null)
+                return "";
+            StringBuilder escaped = new StringBuilder(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                default:
+                    if ((c >= 0x20 && c < 0xFFFE) || c == '\t' || c == '\n' || c == '\r')
+                        escaped.append(c);
+                }
             }
+            return escaped.toString();
         }
+    }
+
+    // Writes text to a file from a background thread, so reporting never waits on the disk. Output is buffered
+    // and flushed whenever the writer catches up
+    private static final class AsyncWriter {
+
+        private static final String CLOSE = new String("close");
 
-        private void startThreads() {
-            for (Thread thread : threads) {
-                thread.start();
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+        private final Writer out;
+        private final Thread thread;
+        private volatile IOException failure;
+
+        AsyncWriter(String path) {
+            try {
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+            thread = new Thread(this::drain, "Test-reporter");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void write(String text) {
+            queue.add(text);
         }
 
-        private void waitForThreads() {
-            int waitingOnThread = 0;
-            while (waitingOnThread < NUM_SIZE_STEPS) {
+        // Waits for everything written so far to reach the file
+        void close() {
+            queue.add(CLOSE);
+            while (thread.isAlive()) {
                 try {
-                    threads[waitingOnThread].join();
-                    waitingOnThread++;
+                    thread.join();
                 } catch (InterruptedException e) {
                 }
             }
+            if (failure != null)
+                throw new UncheckedIOException(failure);
         }
 
-        private void processResults() {
+        private void drain() {
+            try {
+                while (true) {
+                    String text = queue.take();
+                    if (text == CLOSE)
+                        break;
+                    out.write(text);
+                    if (queue.isEmpty())
+                        out.flush();
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (failure == null)
+                        failure = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Live counters of a test run, registered as the MBean "student-java-tester:type=TestMetrics" by BEGIN.
+     * Watch a long suite with jconsole or any other JMX client
+     */
+    public interface TestMetricsMXBean {
 
-            double ratioTotal = 0;
-            for (int exp_size = 0; exp_size < NUM_SIZE_STEPS; exp_size++) {
+        int getTestsRun();
 
-                int size = initialSize * (0x01 << exp_size);
-                double average = averages[exp_size];
-                double ratio = exp_size != 0 && averages[exp_size - 1] != 0 ? average / averages[exp_size - 1] : 0;
-                ratioTotal += ratio;
-                System.out.printf("Size: %d, Time(ms): %f, Ratio: %f\n", size, average, ratio);
+        int getTestsPassed();
+
+        int getTestsFailed();
+
+        long getAssertions();
+
+        /** Assertions made outside of a running test, which count against no test */
+        long getStrayAssertions();
+
+        int getRunningTests();
+
+        /** Names of the tests running right now, where known */
+        String[] getRunningTestNames();
+
+        double getTotalWallMs();
+
+        double getTotalCpuMs();
+
+        double getSlowestTestMs();
+
+        String getSlowestTest();
+
+        /** Upper bounds of the wall time histogram buckets, in milliseconds. The last bucket has no bound */
+        double[] getWallTimeBucketsMs();
+
+        /** Number of finished tests per wall time bucket */
+        long[] getWallTimeHistogram();
+    }
+
+    // Flight recorder events, so a recording shows the suite's tests, failed assertions and experiment sizes on
+    // the same timeline as the JVM's own GC, JIT and lock events. Recordings include them by default. When no
+    // recording is running, shouldCommit() is false and the events are never filled in
+
+    // Whether this runtime has the jdk.jfr module. Jlinked images and some JVMs, like OpenJ9 11, leave it out.
+    // Without it, no jdk.jfr class may be touched at all, so recording() is checked before any of them is
+    private static final boolean JFR = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+    // True once the recorder has started, from the command line, jcmd or the API. Until then no event is
+    // created, as loading the first event class starts up the whole recorder, which takes over 100ms
+    private static boolean recording() {
+        return JFR && FlightRecorder.isInitialized();
+    }
+
+    @Name("studentjavatester.Test")
+    @Label("Test")
+    @Category("Student Java Tester")
+    @Description("One test function, from start to finish")
+    @StackTrace(false)
+    static final class TestEvent extends Event {
+
+        @Label("Test")
+        String test;
+
+        @Label("Status")
+        String status;
+
+        @Label("Assertions")
+        int assertions;
+    }
+
+    @Name("studentjavatester.AssertionFailed")
+    @Label("Assertion Failed")
+    @Category("Student Java Tester")
+    @Description("A failed assertion. Like the failure messages, repeats past the first few on a line are only counted")
+    @StackTrace(false)
+    static final class AssertionFailedEvent extends Event {
+
+        @Label("Test")
+        String test;
+
+        @Label("Location")
+        String location;
+    }
+
+    @Name("studentjavatester.ExperimentSize")
+    @Label("Experiment Size")
+    @Category("Student Java Tester")
+    @Description("Warmup and trials of one size of an experiment")
+    @StackTrace(false)
+    static final class ExperimentSizeEvent extends Event {
+
+        @Label("Test")
+        String test;
+
+        @Label("Size")
+        int size;
+
+        @Label("Warmup Runs")
+        int warmup;
+
+        @Label("Trials")
+        int trials;
+
+        @Label("Calls per Trial")
+        int batch;
+
+        @Label("Mean Time per Call")
+        @Timespan(Timespan.NANOSECONDS)
+        long mean;
+    }
+
+    private static final class Metrics implements TestMetricsMXBean {
+
+        private static final double[] BUCKETS_MS = { 1, 10, 100, 1_000, 10_000 };
+
+        static final Metrics INSTANCE = new Metrics();
+
+        private final AtomicInteger run = new AtomicInteger();
+        private final AtomicInteger passed = new AtomicInteger();
+        private final LongAdder assertions = new LongAdder();
+        private final LongAdder strays = new LongAdder();
+        private final Map<TestContext, Boolean> running = new ConcurrentHashMap<>();
+        private final LongAdder wallNanos = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+        private final LongAdder[] histogram = new LongAdder[BUCKETS_MS.length + 1];
+        private volatile TestResult slowest;
+
+        private Metrics() {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = new LongAdder();
             }
+        }
+
+        // Starting the platform MBean server takes a while, so it's done off the main thread. Monitoring is
+        // optional, so a JVM without JMX runs the tests all the same
+        void register() {
+            Thread thread = new Thread(() -> {
+                synchronized (this) {
+                    try {
+                        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                        ObjectName name = new ObjectName("student-java-tester:type=TestMetrics");
+                        if (!server.isRegistered(name))
+                            server.registerMBean(this, name);
+                    } catch (JMException | SecurityException e) {
+                    }
+                }
+            }, "Test-metrics");
+            thread.setDaemon(true);
+            thread.start();
+        }
 
-            System.out.printf("Average ratio: %f\n", ratioTotal / (NUM_SIZE_STEPS - 1));
+        void started(TestContext ctx) {
+            running.put(ctx, Boolean.TRUE);
         }
 
-    }
+        // The context of the one test running, or null if there are none or several
+        TestContext onlyRunning() {
+            Iterator<TestContext> it = running.keySet().iterator();
+            TestContext only = it.hasNext() ? it.next() : null;
+            return it.hasNext() ? null : only;
+        }
 
-    // Wrapper needed to provide correct function name
-    private static <E> void wrapExperiment(Experiment<E> exp) {
-        initTest();
-        exp.run();
+        void stopped(TestContext ctx) {
+            running.remove(ctx);
+        }
+
+        // Assertions are counted as they happen, so the total is live while tests run
+        void assertion() {
+            assertions.increment();
+        }
+
+        void assertions(int count) {
+            assertions.add(count);
+        }
+
+        void stray() {
+            strays.increment();
+        }
+
+        // Called by report(), so results from other JVMs are counted too
+        void finished(TestResult result) {
+            run.incrementAndGet();
+            if (result.status == TestResult.Status.PASSED)
+                passed.incrementAndGet();
+            wallNanos.add((long) (result.wallMs * 1e6));
+            cpuNanos.add((long) (result.cpuMs * 1e6));
+
+            int bucket = 0;
+            while (bucket < BUCKETS_MS.length && result.wallMs >= BUCKETS_MS[bucket])
+                bucket++;
+            histogram[bucket].increment();
+
+            TestResult previous = slowest;
+            if (previous == null || result.wallMs > previous.wallMs)
+                slowest = result;
+        }
+
+        @Override
+        public int getTestsRun() {
+            return run.get();
+        }
+
+        @Override
+        public int getTestsPassed() {
+            return passed.get();
+        }
+
+        @Override
+        public int getTestsFailed() {
+            return run.get() - passed.get();
+        }
+
+        @Override
+        public long getAssertions() {
+            return assertions.sum();
+        }
+
+        @Override
+        public long getStrayAssertions() {
+            return strays.sum();
+        }
+
+        @Override
+        public int getRunningTests() {
+            return running.size();
+        }
+
+        @Override
+        public String[] getRunningTestNames() {
+            List<String> names = new ArrayList<>();
+            for (TestContext ctx : running.keySet()) {
+                if (ctx.currentFunc != null)
+                    names.add(ctx.currentFunc);
+            }
+            return names.toArray(new String[0]);
+        }
+
+        @Override
+        public double getTotalWallMs() {
+            return wallNanos.sum() / 1e6;
+        }
+
+        @Override
+        public double getTotalCpuMs() {
+            return cpuNanos.sum() / 1e6;
+        }
+
+        @Override
+        public double getSlowestTestMs() {
+            TestResult result = slowest;
+            return result != null ? result.wallMs : 0;
+        }
+
+        @Override
+        public String getSlowestTest() {
+            TestResult result = slowest;
+            return result != null ? result.name : null;
+        }
+
+        @Override
+        public double[] getWallTimeBucketsMs() {
+            return BUCKETS_MS.clone();
+        }
+
+        @Override
+        public long[] getWallTimeHistogram() {
+            long[] counts = new long[histogram.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = histogram[i].sum();
+            }
+            return counts;
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+
+/**
+ *  Measures the overhead of a passing assertion, and of a failing one that keeps failing at the same line.
+ *
+ *  Compares the cost of capturing the full stack on every assertion (how ASSERT_* used to resolve
+ *  the calling test) against the current ASSERT_EQUAL, which only walks the stack once per test, and
+ *  against a repeat failure. One the test makes itself only walks up to its caller, one made through
+ *  a helper walks down to the test.
+ *
+ *  Run with: java AssertionBenchmark [assertions]
+ */
+
+public class AssertionBenchmark {
+
+    private static int assertions = 1_000_000;
+    private static final int ROUNDS = 5;
+
+    // Keeps what the stack capture reads, so it isn't optimized away
+    private static int sink;
+    private static String currentFunc;
+    private static String currentFile;
+    private static int currentLine;
+
+    public static void main(String[] args) {
+        if (args.length > 0)
+            assertions = Integer.parseInt(args[0]);
+
+        Test.BEGIN();
+        Test.RUN_TEST(AssertionBenchmark::bench_full_stack_capture);
+        Test.RUN_TEST(AssertionBenchmark::bench_assert_equal);
+        Test.RUN_TEST(AssertionBenchmark::bench_assert_equal_int);
+        Test.RUN_TEST(AssertionBenchmark::bench_repeat_failure);
+        Test.RUN_TEST(AssertionBenchmark::bench_repeat_failure_helper);
+        Test.END();
+    }
+
+    // What every assertion used to pay: materialize the whole stack to read the caller's name, file and line
+    public static void bench_full_stack_capture() {
+        report("Full stack capture", () -> {
+            for (int i = 0; i < assertions; i++) {
+                oldAssertEqual(i, i);
+            }
+        });
+        Test.ASSERT_TRUE(sink != 0);
+    }
+
+    // The assertion as it used to be, at the same depth: ASSERT_EQUAL called ASSERT_EQUAL_MESSAGE, which
+    // called initTest, which read the stack
+    private static void oldAssertEqual(Object expected, Object actual) {
+        oldAssertEqualMessage(expected, actual, null);
+    }
+
+    private static void oldAssertEqualMessage(Object expected, Object actual, String message) {
+        oldInitTest();
+        if (!expected.equals(actual))
+            sink--;
+    }
+
+    private static void oldInitTest() {
+        StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+        StackTraceElement trace = stack[stack.length - 3];
+        currentFunc = trace.getMethodName();
+        currentLine = trace.getLineNumber();
+        currentFile = trace.getFileName();
+        sink += currentLine;
+    }
+
+    public static void bench_assert_equal() {
+        report("ASSERT_EQUAL", () -> {
+            for (int i = 0; i < assertions; i++) {
+                Test.ASSERT_EQUAL(i, i);
+            }
+        });
+    }
+
+    public static void bench_assert_equal_int() {
+        report("ASSERT_EQUAL_INT", () -> {
+            for (int i = 0; i < assertions; i++) {
+                Test.ASSERT_EQUAL_INT(i, i);
+            }
+        });
+    }
+
+    // Fails every time at one line of the test itself. Only the first few messages are kept, the rest are
+    // counted. The rounds are timed here rather than by report(), so the assertion isn't made from a lambda
+    public static void bench_repeat_failure() {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < assertions; i++) {
+                Test.ASSERT_EQUAL_INT(i, i + 1);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        print("Repeat failure", best);
+    }
+
+    // Fails every time at one line, through a lambda the test doesn't call itself
+    public static void bench_repeat_failure_helper() {
+        report("Repeat via helper", () -> {
+            for (int i = 0; i < assertions; i++) {
+                Test.ASSERT_EQUAL_INT(i, i + 1);
+            }
+        });
+    }
+
+    // Reports the best of several rounds, the first rounds double as warmup
+    private static void report(String name, Runnable loop) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            loop.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        print(name, best);
+    }
+
+    private static void print(String name, long best) {
+        System.out.printf("%-20s %10.1f ns/assertion (%d assertions)\n", name, (double) best / assertions,
+                assertions);
+    }
+}
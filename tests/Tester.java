@@ -7,35 +7,74 @@
  * 
  */
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Function;
 import java.util.function.BiConsumer;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
 
 public class Tester {
 
     public static void main(String[] args) {
 
+        // Results can also be written for other tools, e.g. java Tester --json results.jsonl --junit results.xml
+        // With --baseline times.tsv, experiments are compared against the times saved by the previous run
+        // With --shards 4, unit tests run on 4 child JVMs
+        boolean baseline = false;
+        int shards = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--json"))
+                Test.ADD_REPORTER(new Test.JsonLinesReporter(args[i + 1]));
+            if (args[i].equals("--junit"))
+                Test.ADD_REPORTER(new Test.JUnitXmlReporter(args[i + 1]));
+            if (args[i].equals("--baseline")) {
+                Test.SET_BASELINE(args[i + 1], 0.25);
+                baseline = true;
+            }
+            if (args[i].equals("--shards"))
+                shards = Integer.parseInt(args[i + 1]);
+        }
+
         Test.BEGIN();
 
-        // Unit tests
-        Test.RUN_TEST(Tester::test1_pass_assert_equal);
-        Test.RUN_TEST(Tester::test2_pass_assert_true);
-        Test.RUN_TEST(Tester::test3_pass_assert_false);
-        Test.RUN_TEST(Tester::test4_pass_assert_within);
-        Test.RUN_TEST(Tester::test5_fail_assert_equal);
-        Test.RUN_TEST(Tester::test6_fail_assert_true);
-        Test.RUN_TEST(Tester::test7_fail_assert_false);
-        Test.RUN_TEST(Tester::test8_fail_assert_within);
-        Test.RUN_TEST(Tester::test9_exception);
-        Test.RUN_TEST(Tester::test10_timeout);
-        Test.RUN_TEST(Tester::test11_pass_equal_objects);
-        Test.RUN_TEST(Tester::test12_fail_equal_objects);
-        Test.RUN_TEST(Tester::test13_pass_null);
-        Test.RUN_TEST(Tester::test14_fail_null);
+        // Unit tests are every method starting with "test", run in parallel. Results are still printed in
+        // name order. Tests can also be listed by hand, e.g. Test.RUN_TESTS(Tester::test1_pass_assert_equal)
+        if (shards > 0) {
+            Test.RUN_SHARDED(Tester.class, "test", shards);
+        } else {
+            Test.RUN_TESTS(Test.DISCOVER_TESTS(Tester.class, "test"));
+        }
+
+        // A whole test can be given a time limit. Overdue tests are interrupted
+        Test.RUN_TEST(Tester::slow_fail_test_timeout, 200);
 
         // Big O tests
         Test.RUN_TEST(Tester::time_arraylist_add);
         Test.RUN_TEST(Tester::time_arraylist_get);
+        Test.RUN_TEST(Tester::time_arraylist_contains);
+        Test.RUN_TEST(Tester::time_pass_complexity_contains);
+        Test.RUN_TEST(Tester::time_fail_complexity_insert_front);
+        Test.RUN_TEST(Tester::time_arraylist_sort);
+        Test.RUN_TEST(Tester::time_hashmap_put_latency);
+        Test.RUN_TEST(Tester::time_compare_list_sum);
+        Test.RUN_TEST(Tester::time_scaling_synchronized_map);
+        if (baseline)
+            Test.RUN_TEST(Tester::time_no_regression_get);
 
         Test.END();
     }
@@ -101,8 +140,12 @@ public class Tester {
     public static void test10_timeout() {
         ArrayList<Integer> list = new ArrayList<>();
 
+        // Checks for the interrupt sent when the timeout expires, so a cancelled run stops instead of
+        // keeping a worker busy
         Runnable nSquared = () -> {
             for (int elem = 0; elem < 100000; elem++) {
+                if (Thread.interrupted())
+                    return;
                 list.add(0, elem);
             }
         };
@@ -134,6 +177,147 @@ public class Tester {
         Test.ASSERT_NULL_MESSAGE(expected, "OK, This should have failed!");
     }
 
+    public static void test15_pass_primitive_assertions() {
+
+        // Typed assertions avoid boxing, so they are cheap to call inside large loops
+        for (int i = 0; i < 1000000; i++) {
+            Test.ASSERT_EQUAL_INT(i, i);
+            Test.ASSERT_INT_WITHIN(1, i, i + 1);
+        }
+        Test.ASSERT_EQUAL_LONG(1L << 40, 1L << 40);
+        Test.ASSERT_EQUAL_CHAR('a', "abc".charAt(0));
+        Test.ASSERT_DOUBLE_WITHIN(0.001, 0.3, 0.1 + 0.2);
+        Test.ASSERT_EQUAL_INT_ARRAY(new int[] { 1, 2, 3 }, new int[] { 1, 2, 3 });
+        Test.ASSERT_DOUBLE_ARRAY_WITHIN(0.001, new double[] { 0.3 }, new double[] { 0.1 + 0.2 });
+    }
+
+    public static void test16_fail_primitive_assertions() {
+        Test.ASSERT_EQUAL_DOUBLE_MESSAGE(0.3, 0.1 + 0.2, "OK, This should have failed!");
+        Test.ASSERT_LONG_WITHIN_MESSAGE(10L, Long.MIN_VALUE, Long.MAX_VALUE, "OK, This should have failed!");
+        Test.ASSERT_EQUAL_CHAR_ARRAY_MESSAGE("dog".toCharArray(), "dot".toCharArray(), "OK, This should have failed!");
+        Test.ASSERT_EQUAL_INT_ARRAY_MESSAGE(new int[] { 1, 2 }, new int[] { 1, 2, 3 }, "OK, This should have failed!");
+    }
+
+    public static void test17_pass_bulk_assertions() {
+        int[] expected = new int[1_000_000];
+        Arrays.setAll(expected, i -> i);
+        Test.ASSERT_ARRAY_EQUAL(expected, expected.clone());
+        Test.ASSERT_ARRAY_EQUAL(new String[] { "a", "b" }, new String[] { "a", "b" });
+
+        List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < 1_000_000; i++) {
+            list.add(i);
+        }
+        Test.ASSERT_ITERABLE_EQUAL(list, new LinkedList<>(list));
+    }
+
+    // Failures show the first difference and the elements around it, however large the inputs are
+    public static void test18_fail_bulk_assertions() {
+        int[] expected = new int[1_000_000];
+        Arrays.setAll(expected, i -> i);
+        int[] actual = expected.clone();
+        actual[500_000] = -1;
+        Test.ASSERT_ARRAY_EQUAL_MESSAGE(expected, actual, "OK, This should have failed!");
+
+        List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < 1_000_000; i++) {
+            list.add(i);
+        }
+        List<Integer> shorter = new LinkedList<>(list.subList(0, 999_999));
+        Test.ASSERT_ITERABLE_EQUAL_MESSAGE(list, shorter, "OK, This should have failed!");
+
+        List<Integer> changed = new ArrayList<>(list);
+        changed.set(1, 7);
+        Test.ASSERT_EQUAL_MESSAGE(list, changed, "OK, This should have failed!");
+    }
+
+    // Repeated failures at one line are counted, keeping the first few messages
+    public static void test19_fail_repeated_assertion() {
+        for (int i = 0; i < 10_000; i++) {
+            Test.ASSERT_EQUAL_INT_MESSAGE(i, i + 1, "OK, This should have failed!");
+        }
+    }
+
+    // Reversing a list twice gives back the same list, checked on 100000 random lists
+    public static void test20_pass_for_all() {
+        Test.ASSERT_FOR_ALL(Test.Generator.lists(Test.Generator.integers(-1000, 1000), 50), list -> {
+            List<Integer> reversed = new ArrayList<>(list);
+            Collections.reverse(reversed);
+            Collections.reverse(reversed);
+            return reversed.equals(list);
+        }, 100_000);
+    }
+
+    // A failing input is shrunk to a minimal counterexample, here a single element list of [100]
+    public static void test21_fail_for_all() {
+        Test.ASSERT_FOR_ALL_MESSAGE(Test.Generator.lists(Test.Generator.integers(0, 1000), 50),
+                list -> list.stream().mapToInt(Integer::intValue).sum() < 100, 10_000, 42,
+                "OK, This should have failed!");
+    }
+
+    // A negative delta would let any value pass, so it is rejected rather than checked
+    public static void test22_pass_negative_delta_rejected() {
+        boolean thrown = false;
+        try {
+            Test.ASSERT_LONG_WITHIN(-1L, 5L, 5L);
+        } catch (IllegalArgumentException e) {
+            thrown = true;
+        }
+        Test.ASSERT_TRUE_MESSAGE(thrown, "ASSERT_LONG_WITHIN accepted a negative delta");
+
+        thrown = false;
+        try {
+            Test.ASSERT_DOUBLE_WITHIN(-0.5, 1.0, 1.0);
+        } catch (IllegalArgumentException e) {
+            thrown = true;
+        }
+        Test.ASSERT_TRUE_MESSAGE(thrown, "ASSERT_DOUBLE_WITHIN accepted a negative delta");
+    }
+
+    // Control characters can't appear in XML at all, so the JUnit report drops them from failure messages and
+    // stays well formed
+    public static void test23_pass_junit_xml_control_characters() {
+        try {
+            Path path = Files.createTempFile("junit", ".xml");
+            Test.JUnitXmlReporter reporter = new Test.JUnitXmlReporter(path.toString());
+            reporter.begin("Tester.java");
+            reporter.testFinished(new Test.TestResult("escaped", Test.TestResult.Status.FAILED,
+                    Collections.singletonList("Expected a\u0001b, was <c> & \"d\"\u001B[0m"), null, 0, 0, 1, 0,
+                    Collections.emptyList(), Collections.emptyList(), Collections.emptyList()));
+            reporter.end();
+
+            Document report = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(path.toFile());
+            Element failure = (Element) report.getElementsByTagName("failure").item(0);
+            Test.ASSERT_EQUAL("Expected ab, was <c> & \"d\"[0m", failure.getAttribute("message"));
+            Files.delete(path);
+        } catch (IOException | ParserConfigurationException | SAXException e) {
+            Test.ASSERT_TRUE_MESSAGE(false, "The report isn't well formed XML: " + e);
+        }
+    }
+
+    // Timing can't tell O(log n) from O(1), so it is refused as a bound before any experiment runs
+    public static void test24_pass_log_bound_rejected() {
+        boolean thrown = false;
+        try {
+            Test.ASSERT_COMPLEXITY_AT_MOST(Test.Complexity.LOGARITHMIC, Test.ExperimentConfig.builder(10, 100).build(),
+                    Tester::zeros, (size, data) -> data.get(0));
+        } catch (IllegalArgumentException e) {
+            thrown = true;
+        }
+        Test.ASSERT_TRUE_MESSAGE(thrown, "ASSERT_COMPLEXITY_AT_MOST accepted O(log n) as a bound");
+    }
+
+    public static void slow_fail_test_timeout() {
+        Test.ASSERT_TRUE(true);
+
+        // Sleeping responds to the interrupt, so the test stops as soon as it is cancelled
+        try {
+            Thread.sleep(10000);
+        } catch (InterruptedException e) {
+            return;
+        }
+    }
+
     public static void time_arraylist_add() {
 
         // Lambda function that accepts a size and should return an arraylist with that many elements
@@ -170,13 +354,148 @@ public class Tester {
             return result;
         };
 
-        // The actual operation to be tested
+        // The actual operation to be tested. A single get is too fast to time alone, so calls are timed in
+        // batches and the result goes to the blackhole so it isn't optimized away
         BiConsumer<Integer, ArrayList<Integer>> get = (size, data) -> {
-            data.get(0);
+            Test.BLACKHOLE.consume(data.get(0));
         };
 
-        int repeats_for_given_size = 100000;
+        int repeats_for_given_size = 1000;
         int initial_arraylist_size = 100000;
-        Test.TIME_EXPERIMENT(repeats_for_given_size, initial_arraylist_size, arrayListGenerator, get);
+        Test.TIME_EXPERIMENT(Test.ExperimentConfig.builder(repeats_for_given_size, initial_arraylist_size).batched()
+                .build(), arrayListGenerator, get);
+    }
+
+    // An arraylist of n zeros, for experiments that only need a list of a given size
+    private static ArrayList<Integer> zeros(int n) {
+        ArrayList<Integer> result = new ArrayList<Integer>(n);
+        while (result.size() < n) {
+            result.add(0);
+        }
+        return result;
+    }
+
+    public static void time_arraylist_contains() {
+
+        // Searches the whole list, so larger sizes quickly become expensive
+        BiConsumer<Integer, ArrayList<Integer>> contains = (size, data) -> {
+            data.contains(1);
+        };
+
+        // Grow the list by 1.5x each step for as long as the experiment fits in a 2 second budget. Searching
+        // doesn't change the list, so workers can share it to split the trials of a size
+        Test.ExperimentConfig config = Test.ExperimentConfig.builder(100, 10000)
+                .growth(1.5)
+                .adaptive(2000, 10000000)
+                .readOnly()
+                .build();
+        Test.TIME_EXPERIMENT(config, Tester::zeros, contains);
+    }
+
+    public static void time_pass_complexity_contains() {
+
+        // Linear search should scale no worse than O(n). Trials are added until each size varies by under 5%
+        Test.ExperimentConfig config = Test.ExperimentConfig.builder(200, 20000)
+                .steps(6)
+                .repeatUntilStable(0.05, 2000)
+                .build();
+        Test.ASSERT_COMPLEXITY_AT_MOST(Test.Complexity.LINEAR, config, Tester::zeros,
+                (size, data) -> data.contains(1));
+    }
+
+    public static void time_fail_complexity_insert_front() {
+
+        // Inserting at the front shifts every element, so this is O(n) and not O(1)
+        BiConsumer<Integer, ArrayList<Integer>> insertFront = (size, data) -> {
+            data.add(0, 0);
+            data.remove(data.size() - 1);
+        };
+
+        Test.ExperimentConfig config = Test.ExperimentConfig.builder(2000, 50000).steps(6).build();
+        Test.ASSERT_COMPLEXITY_AT_MOST_MESSAGE(Test.Complexity.CONSTANT, config, Tester::zeros, insertFront,
+                "OK, This should have failed!");
+    }
+
+    public static void time_arraylist_sort() {
+
+        Function<Integer, ArrayList<Integer>> shuffledGenerator = (size) -> {
+            Random random = new Random(size);
+            ArrayList<Integer> result = new ArrayList<Integer>(size);
+            while (result.size() < size) {
+                result.add(random.nextInt());
+            }
+            return result;
+        };
+
+        // Sorting changes the list, so every trial needs a freshly shuffled one. Lists are built 50 at a time
+        // across the experiment workers, outside of the timed region. Those lists are kept under 16MB, which
+        // runs fewer sizes and workers at once when they would take more
+        Test.ExperimentConfig config = Test.ExperimentConfig.builder(200, 2000)
+                .freshInputs(50, true)
+                .memoryBudget(16L << 20)
+                .build();
+        Test.TIME_EXPERIMENT(config, shuffledGenerator, (size, data) -> Collections.sort(data));
+    }
+
+    // Most puts are quick, but every so often one resizes the table. That only shows in the tail, which the
+    // histogram keeps for any number of trials without holding on to each time
+    public static void time_hashmap_put_latency() {
+        Test.ExperimentConfig config = Test.ExperimentConfig.builder(100000, 1000)
+                .steps(3)
+                .growth(10)
+                .histogram()
+                .build();
+        Test.TIME_EXPERIMENT(config, (size) -> {
+            HashMap<Integer, Integer> map = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                map.put(i, i);
+            }
+            return map;
+        }, (size, map) -> map.put(map.size(), 0));
+    }
+
+    // Three ways of summing the same list, timed in turns. Indexing is the baseline the others are compared to
+    public static void time_compare_list_sum() {
+        Map<String, BiConsumer<Integer, ArrayList<Integer>>> sums = new LinkedHashMap<>();
+        sums.put("index", (size, data) -> {
+            long sum = 0;
+            for (int i = 0; i < data.size(); i++) {
+                sum += data.get(i);
+            }
+            Test.BLACKHOLE.consume(sum);
+        });
+        sums.put("iterator", (size, data) -> {
+            long sum = 0;
+            for (int value : data) {
+                sum += value;
+            }
+            Test.BLACKHOLE.consume(sum);
+        });
+        sums.put("stream", (size, data) -> Test.BLACKHOLE.consume(data.stream().mapToLong(Integer::longValue).sum()));
+
+        Test.TIME_COMPARE(Test.ExperimentConfig.builder(200, 1000).steps(3).growth(10).build(),
+                (size) -> new ArrayList<Integer>(Collections.nCopies(size, 1)), sums);
+    }
+
+    // Every get takes the map's one lock, so more threads shouldn't help much. Runs up to 4 threads even on
+    // smaller machines, where the extra threads only show the cost of oversubscription
+    public static void time_scaling_synchronized_map() {
+        Function<Integer, Map<Integer, Integer>> mapGenerator = (size) -> {
+            Map<Integer, Integer> map = Collections.synchronizedMap(new HashMap<>());
+            for (int i = 0; i < size; i++) {
+                map.put(i, i);
+            }
+            return map;
+        };
+
+        Test.TIME_SCALING(400000, 1000, 4, mapGenerator,
+                (size, map) -> Test.BLACKHOLE.consume(map.get(ThreadLocalRandom.current().nextInt(size))));
+    }
+
+    // Fails if get() became more than 25% slower than in the run that saved the baseline
+    public static void time_no_regression_get() {
+        Test.ExperimentConfig config = Test.ExperimentConfig.builder(100000, 1000).steps(3).growth(10).build();
+        Test.ASSERT_NO_REGRESSION(config, (size) -> new ArrayList<Integer>(Collections.nCopies(size, 0)),
+                (size, list) -> list.get(size / 2));
     }
 }
\ No newline at end of file